@@ -0,0 +1,34 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Lox programs the benchmarks run on, loaded from the {@code corpus} resource directory.
+ */
+final class Corpus {
+    private Corpus() {
+    }
+
+    static String load(String program) {
+        var path = "/corpus/" + program + ".lox";
+        try (InputStream input = Objects.requireNonNull(Corpus.class.getResourceAsStream(path), path)) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static ImmutableList<Token> scan(String source) {
+        return ImmutableList.copyOf(new Scanner(source, new ErrorReporter()).scanTokens());
+    }
+
+    static ImmutableList<Stmt> parse(String source) {
+        return new Parser(scan(source), new ErrorReporter()).parse();
+    }
+}
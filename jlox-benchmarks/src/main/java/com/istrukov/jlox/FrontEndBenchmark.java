@@ -0,0 +1,58 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scanner, parser and resolver throughput on each program of the corpus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FrontEndBenchmark {
+    @Param({"fib", "loops", "strings", "classes", "closures"})
+    public String program;
+
+    private String source;
+    private ImmutableList<Token> tokens;
+    private ImmutableList<Stmt> statements;
+
+    @Setup
+    public void setUp() {
+        source = Corpus.load(program);
+        tokens = Corpus.scan(source);
+        statements = new Parser(tokens, new ErrorReporter()).parse();
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source, new ErrorReporter()).scanTokens();
+    }
+
+    @Benchmark
+    public ImmutableList<Stmt> parse() {
+        return new Parser(tokens, new ErrorReporter()).parse();
+    }
+
+    @Benchmark
+    public ImmutableList<Stmt> resolve() {
+        new Resolver(new ErrorReporter()).resolve(statements);
+        return statements;
+    }
+}
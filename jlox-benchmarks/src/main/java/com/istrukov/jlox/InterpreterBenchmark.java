@@ -0,0 +1,59 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end execution of each program of the corpus by the tree-walking interpreter. The program is parsed and
+ * resolved once; every invocation runs it with a fresh interpreter so globals do not leak between runs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class InterpreterBenchmark {
+    @Param({"fib", "loops", "strings", "classes", "closures"})
+    public String program;
+
+    private ImmutableList<Stmt> statements;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        statements = Corpus.parse(Corpus.load(program));
+        new Resolver(new ErrorReporter()).resolve(statements);
+        // The programs print their results; keep that out of the measurement and the JMH log.
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        var interpreter = new Interpreter();
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+}
@@ -0,0 +1,645 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Binary form of a resolved program, used by {@link ScriptCache}. Besides the tree itself it keeps everything the
+ * resolver and parser computed that execution relies on: variable depths and slots, frame sizes and statement lines.
+ * Strings are stored once in a table at the start and referenced by index.
+ *
+ * <p>Bump {@link #VERSION} whenever the AST or this format changes, so stale cache entries are ignored.
+ */
+final class AstSerializer {
+    private static final int MAGIC = 0x4a4c4f58;
+    private static final int VERSION = 2;
+
+    private static final byte BINARY = 1;
+    private static final byte UNARY = 2;
+    private static final byte GROUPING = 3;
+    private static final byte LITERAL = 4;
+    private static final byte VARIABLE = 5;
+    private static final byte ASSIGNMENT = 6;
+    private static final byte LOGICAL = 7;
+    private static final byte CALL = 8;
+    private static final byte GET = 9;
+    private static final byte SET = 10;
+    private static final byte THIS = 11;
+    private static final byte SUPER = 12;
+    private static final byte EXPRESSION = 13;
+    private static final byte PRINT = 14;
+    private static final byte VAR = 15;
+    private static final byte BLOCK = 16;
+    private static final byte IF = 17;
+    private static final byte WHILE = 18;
+    private static final byte FUNCTION = 19;
+    private static final byte RETURN = 20;
+    private static final byte CLASS = 21;
+
+    private static final byte NO_LITERAL = 0;
+    private static final byte STRING_LITERAL = 1;
+    private static final byte NUMBER_LITERAL = 2;
+    private static final byte BOOLEAN_LITERAL = 3;
+    private static final byte NIL_LITERAL = 4;
+
+    private static final TokenType[] tokenTypes = TokenType.values();
+
+    private AstSerializer() {
+    }
+
+    static byte[] serialize(ImmutableList<Stmt> program) {
+        var writer = new Writer();
+        writer.writeStatements(program);
+        return writer.finish();
+    }
+
+    /**
+     * Reads a program written by {@link #serialize}, failing with {@link IllegalArgumentException} if the data was
+     * written by another version or is damaged.
+     */
+    static ImmutableList<Stmt> deserialize(ByteBuffer buffer) {
+        try {
+            return new Reader(buffer).readProgram();
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid serialized program", e);
+        }
+    }
+
+    private static final class Writer implements Visitor<Void> {
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        byte[] finish() {
+            try {
+                var result = new ByteArrayOutputStream();
+                var header = new DataOutputStream(result);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.writeInt(strings.size());
+                for (var string : strings.keySet()) {
+                    var encoded = string.getBytes(StandardCharsets.UTF_8);
+                    header.writeInt(encoded.length);
+                    header.write(encoded);
+                }
+                out.flush();
+                bytes.writeTo(result);
+                return result.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeByte(int value) {
+            try {
+                out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeDouble(double value) {
+            try {
+                out.writeDouble(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeString(String value) {
+            writeInt(strings.computeIfAbsent(value, s -> strings.size()));
+        }
+
+        private void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        private void writeToken(Token token) {
+            writeByte(token.type().ordinal());
+            writeString(token.lexeme());
+            if (token.literal().isPresent()) {
+                writeLiteral(token.literal().get());
+            } else {
+                writeByte(NO_LITERAL);
+            }
+            writeInt(token.line());
+        }
+
+        private void writeLiteral(Token.Literal literal) {
+            if (literal.isString()) {
+                writeByte(STRING_LITERAL);
+                writeString(literal.asString());
+            } else if (literal.isNumber()) {
+                writeByte(NUMBER_LITERAL);
+                writeDouble(literal.asNumber());
+            } else if (literal.isBoolean()) {
+                writeByte(BOOLEAN_LITERAL);
+                writeBoolean(literal.asBoolean());
+            } else {
+                writeByte(NIL_LITERAL);
+            }
+        }
+
+        private void writeTokens(ImmutableList<Token> tokens) {
+            writeInt(tokens.size());
+            for (var token : tokens) {
+                writeToken(token);
+            }
+        }
+
+        private void write(AstNode node) {
+            node.accept(this);
+        }
+
+        private void writeOptional(Optional<? extends AstNode> node) {
+            writeBoolean(node.isPresent());
+            node.ifPresent(this::write);
+        }
+
+        private void writeExpressions(ImmutableList<Expr> expressions) {
+            writeInt(expressions.size());
+            for (var expr : expressions) {
+                write(expr);
+            }
+        }
+
+        void writeStatements(ImmutableList<? extends Stmt> statements) {
+            writeInt(statements.size());
+            for (var stmt : statements) {
+                write(stmt);
+            }
+        }
+
+        private void writeAccess(Expr.VariableAccess access) {
+            writeInt(access.depth);
+            writeInt(access.slot);
+        }
+
+        private void startStatement(byte tag, Stmt stmt) {
+            writeByte(tag);
+            writeInt(stmt.line);
+        }
+
+        @Nullable
+        @Override
+        public Void visitBinary(Expr.Binary binary) {
+            writeByte(BINARY);
+            write(binary.left);
+            writeToken(binary.operator);
+            write(binary.right);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitUnary(Expr.Unary unary) {
+            writeByte(UNARY);
+            writeToken(unary.operator);
+            write(unary.right);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitGrouping(Expr.Grouping grouping) {
+            writeByte(GROUPING);
+            write(grouping.expression);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitLiteral(Expr.Literal literal) {
+            writeByte(LITERAL);
+            writeLiteral(literal.value);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitExpression(Stmt.Expression expression) {
+            startStatement(EXPRESSION, expression);
+            write(expression.expression);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitPrint(Stmt.Print print) {
+            startStatement(PRINT, print);
+            write(print.expression);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitVar(Stmt.VariableDeclaration variableDeclaration) {
+            startStatement(VAR, variableDeclaration);
+            writeToken(variableDeclaration.name);
+            writeOptional(variableDeclaration.initializer);
+            writeInt(variableDeclaration.slot);
+            writeInt(variableDeclaration.environmentSlot);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitVariableReference(Expr.VariableReference variableReference) {
+            writeByte(VARIABLE);
+            writeToken(variableReference.name);
+            writeAccess(variableReference);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitAssignment(Expr.Assignment assignment) {
+            writeByte(ASSIGNMENT);
+            writeToken(assignment.name);
+            write(assignment.expression);
+            writeAccess(assignment);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitBlock(Stmt.Block block) {
+            startStatement(BLOCK, block);
+            writeStatements(block.statements);
+            writeInt(block.slots);
+            writeInt(block.frameSize);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitIf(Stmt.If anIf) {
+            startStatement(IF, anIf);
+            write(anIf.condition);
+            write(anIf.thenBranch);
+            writeOptional(anIf.elseBranch);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitLogical(Expr.Logical logical) {
+            writeByte(LOGICAL);
+            write(logical.left);
+            writeToken(logical.operator);
+            write(logical.right);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitWhile(Stmt.While aWhile) {
+            startStatement(WHILE, aWhile);
+            write(aWhile.condition);
+            write(aWhile.body);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitCall(Expr.Call call) {
+            writeByte(CALL);
+            write(call.callee);
+            writeToken(call.paren);
+            writeExpressions(call.arguments);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitFunction(Stmt.Function function) {
+            startStatement(FUNCTION, function);
+            writeToken(function.name);
+            writeTokens(function.params);
+            writeStatements(function.body);
+            writeInt(function.slot);
+            writeInt(function.environmentSlot);
+            writeInt(function.slots);
+            writeInt(function.frameSize);
+            writeInt(function.capturedParameters.length);
+            for (int slot : function.capturedParameters) {
+                writeInt(slot);
+            }
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitReturn(Stmt.Return aReturn) {
+            startStatement(RETURN, aReturn);
+            writeToken(aReturn.keyword);
+            writeOptional(aReturn.value);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitClass(Stmt.Class aClass) {
+            startStatement(CLASS, aClass);
+            writeToken(aClass.name);
+            writeOptional(aClass.superclass);
+            writeStatements(aClass.methods);
+            writeInt(aClass.slot);
+            writeInt(aClass.environmentSlot);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitGet(Expr.Get get) {
+            writeByte(GET);
+            write(get.object);
+            writeToken(get.name);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitSet(Expr.Set set) {
+            writeByte(SET);
+            write(set.object);
+            writeToken(set.name);
+            write(set.value);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitThis(Expr.This expr) {
+            writeByte(THIS);
+            writeToken(expr.keyword);
+            writeAccess(expr);
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Void visitSuper(Expr.Super aSuper) {
+            writeByte(SUPER);
+            writeToken(aSuper.keyword);
+            writeToken(aSuper.method);
+            writeAccess(aSuper);
+            writeAccess(aSuper.receiver);
+            return null;
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer in;
+        private String[] strings = new String[0];
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        ImmutableList<Stmt> readProgram() {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IllegalStateException("unsupported format");
+            }
+            strings = new String[in.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = in.getInt();
+                strings[i] = StandardCharsets.UTF_8.decode(in.slice(in.position(), length)).toString();
+                in.position(in.position() + length);
+            }
+            var program = readStatements();
+            if (in.hasRemaining()) {
+                throw new IllegalStateException("trailing data");
+            }
+            return program;
+        }
+
+        private String readString() {
+            return strings[in.getInt()];
+        }
+
+        private boolean readBoolean() {
+            return in.get() != 0;
+        }
+
+        private Token readToken() {
+            var type = tokenTypes[in.get()];
+            var lexeme = readString();
+            var literal = readLiteral(in.get());
+            int line = in.getInt();
+            return new Token(type, lexeme, literal, line);
+        }
+
+        private Optional<Token.Literal> readLiteral(byte tag) {
+            switch (tag) {
+                case NO_LITERAL:
+                    return Optional.empty();
+                case STRING_LITERAL:
+                    return Optional.of(new Token.Literal(readString()));
+                case NUMBER_LITERAL:
+                    return Optional.of(new Token.Literal(in.getDouble()));
+                case BOOLEAN_LITERAL:
+                    return Optional.of(new Token.Literal(readBoolean()));
+                case NIL_LITERAL:
+                    return Optional.of(new Token.Literal());
+                default:
+                    throw new IllegalStateException("unknown literal tag " + tag);
+            }
+        }
+
+        private ImmutableList<Token> readTokens() {
+            int count = in.getInt();
+            var builder = ImmutableList.<Token>builderWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                builder.add(readToken());
+            }
+            return builder.build();
+        }
+
+        private ImmutableList<Expr> readExpressions() {
+            int count = in.getInt();
+            var builder = ImmutableList.<Expr>builderWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                builder.add(readExpr());
+            }
+            return builder.build();
+        }
+
+        private ImmutableList<Stmt> readStatements() {
+            int count = in.getInt();
+            var builder = ImmutableList.<Stmt>builderWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                builder.add(readStmt());
+            }
+            return builder.build();
+        }
+
+        private Optional<Expr> readOptionalExpr() {
+            return readBoolean() ? Optional.of(readExpr()) : Optional.empty();
+        }
+
+        private <T extends Expr.VariableAccess> T readAccess(T access) {
+            access.depth = in.getInt();
+            access.slot = in.getInt();
+            return access;
+        }
+
+        private Expr readExpr() {
+            byte tag = in.get();
+            switch (tag) {
+                case BINARY: {
+                    var left = readExpr();
+                    var operator = readToken();
+                    return new Expr.Binary(left, operator, readExpr());
+                }
+                case UNARY: {
+                    var operator = readToken();
+                    return new Expr.Unary(operator, readExpr());
+                }
+                case GROUPING:
+                    return new Expr.Grouping(readExpr());
+                case LITERAL:
+                    return new Expr.Literal(readLiteral(in.get()).orElseThrow());
+                case VARIABLE:
+                    return readAccess(new Expr.VariableReference(readToken()));
+                case ASSIGNMENT: {
+                    var name = readToken();
+                    return readAccess(new Expr.Assignment(name, readExpr()));
+                }
+                case LOGICAL: {
+                    var left = readExpr();
+                    var operator = readToken();
+                    return new Expr.Logical(left, operator, readExpr());
+                }
+                case CALL: {
+                    var callee = readExpr();
+                    var paren = readToken();
+                    return new Expr.Call(callee, paren, readExpressions());
+                }
+                case GET: {
+                    var object = readExpr();
+                    return new Expr.Get(object, readToken());
+                }
+                case SET: {
+                    var object = readExpr();
+                    var name = readToken();
+                    return new Expr.Set(object, name, readExpr());
+                }
+                case THIS:
+                    return readAccess(new Expr.This(readToken()));
+                case SUPER: {
+                    var keyword = readToken();
+                    var aSuper = readAccess(new Expr.Super(keyword, readToken()));
+                    readAccess(aSuper.receiver);
+                    return aSuper;
+                }
+                default:
+                    throw new IllegalStateException("unknown expression tag " + tag);
+            }
+        }
+
+        private Stmt readStmt() {
+            byte tag = in.get();
+            int line = in.getInt();
+            var stmt = readStmtBody(tag);
+            stmt.line = line;
+            return stmt;
+        }
+
+        private Stmt readStmtBody(byte tag) {
+            switch (tag) {
+                case EXPRESSION:
+                    return new Stmt.Expression(readExpr());
+                case PRINT:
+                    return new Stmt.Print(readExpr());
+                case VAR: {
+                    var name = readToken();
+                    var declaration = new Stmt.VariableDeclaration(name, readOptionalExpr());
+                    declaration.slot = in.getInt();
+                    declaration.environmentSlot = in.getInt();
+                    return declaration;
+                }
+                case BLOCK: {
+                    var block = new Stmt.Block(readStatements());
+                    block.slots = in.getInt();
+                    block.frameSize = in.getInt();
+                    return block;
+                }
+                case IF: {
+                    var condition = readExpr();
+                    var thenBranch = readStmt();
+                    if (readBoolean()) {
+                        return new Stmt.If(condition, thenBranch, readStmt());
+                    }
+                    return new Stmt.If(condition, thenBranch);
+                }
+                case WHILE: {
+                    var condition = readExpr();
+                    return new Stmt.While(condition, readStmt());
+                }
+                case FUNCTION:
+                    return readFunction();
+                case RETURN: {
+                    var keyword = readToken();
+                    return new Stmt.Return(keyword, readOptionalExpr());
+                }
+                case CLASS: {
+                    var name = readToken();
+                    Optional<Expr.VariableReference> superclass = Optional.empty();
+                    if (readBoolean()) {
+                        superclass = Optional.of((Expr.VariableReference) readExpr());
+                    }
+                    int count = in.getInt();
+                    var methods = ImmutableList.<Stmt.Function>builderWithExpectedSize(count);
+                    for (int i = 0; i < count; i++) {
+                        var method = readStmt();
+                        if (!(method instanceof Stmt.Function function)) {
+                            throw new IllegalStateException("class method is not a function");
+                        }
+                        methods.add(function);
+                    }
+                    var aClass = new Stmt.Class(name, superclass, methods.build());
+                    aClass.slot = in.getInt();
+                    aClass.environmentSlot = in.getInt();
+                    return aClass;
+                }
+                default:
+                    throw new IllegalStateException("unknown statement tag " + tag);
+            }
+        }
+
+        private Stmt.Function readFunction() {
+            var name = readToken();
+            var params = readTokens();
+            var function = new Stmt.Function(name, params, readStatements());
+            function.slot = in.getInt();
+            function.environmentSlot = in.getInt();
+            function.slots = in.getInt();
+            function.frameSize = in.getInt();
+            var captured = new int[in.getInt()];
+            for (int i = 0; i < captured.length; i++) {
+                captured[i] = in.getInt();
+            }
+            function.capturedParameters = captured;
+            return function;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+import java.util.Objects;
+
+/**
+ * Executable implementation of a binary operator, attached to each {@link Expr.Binary}. Every node starts out
+ * uninitialized and rewrites itself on first execution into a version specialized for the operand types it observed,
+ * e.g. number addition or string concatenation. A specialized node that later sees different types deoptimizes to
+ * the generic node, which handles every combination and never specializes again.
+ *
+ * <p>Nodes are stateless singletons, so replacing {@link Expr.Binary#node} is a single reference write. Threads
+ * running the same program may race on it without harm: whichever node wins still handles every operand it is given,
+ * deoptimizing if needed.
+ */
+abstract class BinaryNode {
+    static final BinaryNode UNINITIALIZED = new Uninitialized();
+    static final BinaryNode GENERIC = new Generic();
+
+    @Nullable
+    abstract Object execute(Expr.Binary binary, @Nullable Object left, @Nullable Object right);
+
+    private static BinaryNode specialize(TokenType operator, boolean numbers, boolean strings) {
+        if (operator == TokenType.EQUAL_EQUAL) {
+            return EQUAL;
+        }
+        if (operator == TokenType.BANG_EQUAL) {
+            return NOT_EQUAL;
+        }
+        if (numbers) {
+            switch (operator) {
+                case PLUS:
+                    return NUMBER_ADD;
+                case MINUS:
+                    return NUMBER_SUBTRACT;
+                case STAR:
+                    return NUMBER_MULTIPLY;
+                case SLASH:
+                    return NUMBER_DIVIDE;
+                case GREATER:
+                    return NUMBER_GREATER;
+                case GREATER_EQUAL:
+                    return NUMBER_GREATER_EQUAL;
+                case LESS:
+                    return NUMBER_LESS;
+                case LESS_EQUAL:
+                    return NUMBER_LESS_EQUAL;
+                default:
+                    return GENERIC;
+            }
+        }
+        if (operator == TokenType.PLUS && strings) {
+            return STRING_CONCAT;
+        }
+        return GENERIC;
+    }
+
+    /**
+     * Returns the node for operands of types known before the program runs, or {@link #UNINITIALIZED} to specialize
+     * on the first operands instead.
+     */
+    static BinaryNode forTypes(TokenType operator, Expr.Type left, Expr.Type right) {
+        boolean numbers = left == Expr.Type.NUMBER && right == Expr.Type.NUMBER;
+        boolean strings = left == Expr.Type.STRING && right == Expr.Type.STRING;
+        if (numbers || strings || operator == TokenType.EQUAL_EQUAL || operator == TokenType.BANG_EQUAL) {
+            return specialize(operator, numbers, strings);
+        }
+        return UNINITIALIZED;
+    }
+
+    @Nullable
+    static Object deoptimize(Expr.Binary binary, @Nullable Object left, @Nullable Object right) {
+        binary.node = GENERIC;
+        return GENERIC.execute(binary, left, right);
+    }
+
+    private static class Uninitialized extends BinaryNode {
+        @Nullable
+        @Override
+        Object execute(Expr.Binary binary, @Nullable Object left, @Nullable Object right) {
+            var specialized = specialize(binary.operator.type(), left instanceof Double && right instanceof Double,
+                    left instanceof CharSequence && right instanceof CharSequence);
+            binary.node = specialized;
+            return specialized.execute(binary, left, right);
+        }
+    }
+
+    /**
+     * A node specialized for two number operands. Once specialized, the interpreter lets the node evaluate its own
+     * operands through {@link Interpreter#evalDouble}, so numeric subexpressions stay unboxed.
+     */
+    abstract static class NumberNode extends BinaryNode {
+        abstract Object apply(double left, double right);
+
+        @Nullable
+        @Override
+        final Object execute(Expr.Binary binary, @Nullable Object left, @Nullable Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return apply((double) left, (double) right);
+            }
+            return deoptimize(binary, left, right);
+        }
+
+        @Nullable
+        final Object executeUnboxed(Interpreter interpreter, Expr.Binary binary) {
+            double left;
+            try {
+                left = interpreter.evalDouble(binary.left);
+            } catch (UnexpectedResult unexpected) {
+                return deoptimize(binary, unexpected.value, interpreter.eval(binary.right));
+            }
+            double right;
+            try {
+                right = interpreter.evalDouble(binary.right);
+            } catch (UnexpectedResult unexpected) {
+                return deoptimize(binary, left, unexpected.value);
+            }
+            return apply(left, right);
+        }
+    }
+
+    /**
+     * A number node whose result is itself a number, so it can hand a primitive double to an enclosing
+     * {@link NumberNode}.
+     */
+    abstract static class ArithmeticNode extends NumberNode {
+        abstract double applyDouble(double left, double right);
+
+        @Override
+        final Object apply(double left, double right) {
+            return applyDouble(left, right);
+        }
+
+        final double executeDouble(Interpreter interpreter, Expr.Binary binary) {
+            double left;
+            try {
+                left = interpreter.evalDouble(binary.left);
+            } catch (UnexpectedResult unexpected) {
+                throw new UnexpectedResult(deoptimize(binary, unexpected.value, interpreter.eval(binary.right)));
+            }
+            double right;
+            try {
+                right = interpreter.evalDouble(binary.right);
+            } catch (UnexpectedResult unexpected) {
+                throw new UnexpectedResult(deoptimize(binary, left, unexpected.value));
+            }
+            return applyDouble(left, right);
+        }
+    }
+
+    /**
+     * A number node comparing its operands, which can hand a primitive boolean to a condition.
+     */
+    abstract static class ComparisonNode extends NumberNode {
+        abstract boolean test(double left, double right);
+
+        @Override
+        final Object apply(double left, double right) {
+            return test(left, right);
+        }
+
+        final boolean executeBoolean(Interpreter interpreter, Expr.Binary binary) {
+            double left;
+            try {
+                left = interpreter.evalDouble(binary.left);
+            } catch (UnexpectedResult unexpected) {
+                return (boolean) Objects.requireNonNull(deoptimize(binary, unexpected.value, interpreter.eval(binary.right)));
+            }
+            double right;
+            try {
+                right = interpreter.evalDouble(binary.right);
+            } catch (UnexpectedResult unexpected) {
+                return (boolean) Objects.requireNonNull(deoptimize(binary, left, unexpected.value));
+            }
+            return test(left, right);
+        }
+    }
+
+    static final ArithmeticNode NUMBER_ADD = new ArithmeticNode() {
+        @Override
+        double applyDouble(double left, double right) {
+            return left + right;
+        }
+    };
+
+    static final ArithmeticNode NUMBER_SUBTRACT = new ArithmeticNode() {
+        @Override
+        double applyDouble(double left, double right) {
+            return left - right;
+        }
+    };
+
+    static final ArithmeticNode NUMBER_MULTIPLY = new ArithmeticNode() {
+        @Override
+        double applyDouble(double left, double right) {
+            return left * right;
+        }
+    };
+
+    static final ArithmeticNode NUMBER_DIVIDE = new ArithmeticNode() {
+        @Override
+        double applyDouble(double left, double right) {
+            return left / right;
+        }
+    };
+
+    static final ComparisonNode NUMBER_GREATER = new ComparisonNode() {
+        @Override
+        boolean test(double left, double right) {
+            return left > right;
+        }
+    };
+
+    static final ComparisonNode NUMBER_GREATER_EQUAL = new ComparisonNode() {
+        @Override
+        boolean test(double left, double right) {
+            return left >= right;
+        }
+    };
+
+    static final ComparisonNode NUMBER_LESS = new ComparisonNode() {
+        @Override
+        boolean test(double left, double right) {
+            return left < right;
+        }
+    };
+
+    static final ComparisonNode NUMBER_LESS_EQUAL = new ComparisonNode() {
+        @Override
+        boolean test(double left, double right) {
+            return left <= right;
+        }
+    };
+
+    static final BinaryNode STRING_CONCAT = new BinaryNode() {
+        @Nullable
+        @Override
+        Object execute(Expr.Binary binary, @Nullable Object left, @Nullable Object right) {
+            if (left instanceof CharSequence l && right instanceof CharSequence r) {
+                return Rope.concat(l, r);
+            }
+            return deoptimize(binary, left, right);
+        }
+    };
+
+    static final BinaryNode EQUAL = new BinaryNode() {
+        @Override
+        Object execute(Expr.Binary binary, @Nullable Object left, @Nullable Object right) {
+            return Interpreter.isEqual(left, right);
+        }
+    };
+
+    static final BinaryNode NOT_EQUAL = new BinaryNode() {
+        @Override
+        Object execute(Expr.Binary binary, @Nullable Object left, @Nullable Object right) {
+            return !Interpreter.isEqual(left, right);
+        }
+    };
+
+    private static class Generic extends BinaryNode {
+        @Nullable
+        @Override
+        Object execute(Expr.Binary binary, @Nullable Object left, @Nullable Object right) {
+            switch (binary.operator.type()) {
+                case PLUS:
+                    if (left instanceof Double && right instanceof Double) {
+                        return (double) left + (double) right;
+                    } else if (left instanceof CharSequence l && right instanceof CharSequence r) {
+                        return Rope.concat(l, r);
+                    }
+                    throw new RuntimeError(binary.operator, "operands must be either two numbers or two strings");
+                case MINUS:
+                    checkNumberOperands(binary.operator, left, right);
+                    return (double) left - (double) right;
+                case SLASH:
+                    checkNumberOperands(binary.operator, left, right);
+                    return (double) left / (double) right;
+                case STAR:
+                    checkNumberOperands(binary.operator, left, right);
+                    return (double) left * (double) right;
+                case GREATER:
+                    checkNumberOperands(binary.operator, left, right);
+                    return (double) left > (double) right;
+                case GREATER_EQUAL:
+                    checkNumberOperands(binary.operator, left, right);
+                    return (double) left >= (double) right;
+                case LESS:
+                    checkNumberOperands(binary.operator, left, right);
+                    return (double) left < (double) right;
+                case LESS_EQUAL:
+                    checkNumberOperands(binary.operator, left, right);
+                    return (double) left <= (double) right;
+                case BANG_EQUAL:
+                    return !Interpreter.isEqual(left, right);
+                case EQUAL_EQUAL:
+                    return Interpreter.isEqual(left, right);
+                default:
+                    return null;
+            }
+        }
+
+        private static void checkNumberOperands(Token operator, @Nullable Object left, @Nullable Object right) {
+            if (!(left instanceof Double)) {
+                throw new RuntimeError(operator, "left operand must be a number");
+            }
+            if (!(right instanceof Double)) {
+                throw new RuntimeError(operator, "right operand must be a number");
+            }
+        }
+    }
+}
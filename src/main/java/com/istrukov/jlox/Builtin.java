@@ -1,25 +1,247 @@
 package com.istrukov.jlox;
 
-import com.google.common.collect.ImmutableList;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class Builtin {
     private Builtin() {
     }
 
-    static final LoxCallable clock = new LoxCallable() {
+    /**
+     * A function implemented in Java. Natives do not depend on the engine calling them, so the same instances are
+     * installed as globals by both the tree-walking {@link Interpreter} and the {@link VirtualMachine}.
+     */
+    abstract static class Native implements LoxCallable {
+        private final String name;
+        private final int arity;
+
+        Native(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        @Nullable
+        abstract Object invoke(List<Object> arguments);
+
         @Override
         public int arity() {
-            return 0;
+            return arity;
+        }
+
+        @Nullable
+        @Override
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            return invoke(Arrays.asList(arguments));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("<native %s>", name);
         }
+    }
 
+    /**
+     * Thrown by natives for invalid arguments; the caller turns it into a {@link RuntimeError} at the call site.
+     */
+    @SuppressWarnings("serial")
+    static class NativeError extends RuntimeException {
+        NativeError(String message) {
+            super(message);
+        }
+    }
+
+    static final Native clock = new Native("clock", 0) {
         @Override
-        public Object call(Interpreter interpreter, ImmutableList<Object> arguments) {
+        Object invoke(List<Object> arguments) {
             return (double) System.currentTimeMillis() / 1000.0;
         }
+    };
+
+    /**
+     * Runs spawned functions: on virtual threads when the JVM has them, otherwise on a pool of daemon threads.
+     */
+    private static final ExecutorService executor = newExecutor();
+
+    private static ExecutorService newExecutor() {
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                var thread = new Thread(runnable, "jlox-task");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Handle returned by {@code spawn}, which {@code join} waits on.
+     */
+    static final class Task {
+        private final Future<Object> result;
+
+        Task(Future<Object> result) {
+            this.result = result;
+        }
+
+        @Nullable
+        Object join() {
+            try {
+                return unwrap(result.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeError error) {
+                    throw error;
+                }
+                throw new NativeError("task failed: " + describe(e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NativeError("interrupted while joining a task");
+            }
+        }
+
+        /**
+         * Describes what made a task fail in Lox terms rather than by the Java exception.
+         */
+        private static String describe(Throwable failure) {
+            if (failure instanceof StackOverflowError) {
+                return "stack overflow";
+            }
+            if (failure instanceof OutOfMemoryError) {
+                return "out of memory";
+            }
+            var message = failure.getMessage();
+            return message != null ? message : "internal error";
+        }
+
+        @Override
+        public String toString() {
+            return "<task>";
+        }
+    }
+
+    /**
+     * Unbounded queue of values passed between tasks with {@code send} and {@code receive}.
+     */
+    static final class Channel {
+        private final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+
+        void send(@Nullable Object value) {
+            values.add(wrap(value));
+        }
+
+        @Nullable
+        Object receive() {
+            try {
+                return unwrap(values.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NativeError("interrupted while receiving from a channel");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "<channel>";
+        }
+    }
+
+    // Java concurrent collections do not take nulls, so nil travels as this marker.
+    private static final Object NIL = new Object();
+
+    private static Object wrap(@Nullable Object value) {
+        return value == null ? NIL : value;
+    }
+
+    @Nullable
+    private static Object unwrap(Object value) {
+        return value == NIL ? null : value;
+    }
+
+    /**
+     * Calls a function with no parameters on its own interpreter, sharing only the globals with the caller.
+     */
+    static final LoxCallable spawn = new LoxCallable() {
+        @Override
+        public int arity() {
+            return 1;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            if (!(arguments[0] instanceof LoxCallable function) || function.arity() != 0) {
+                throw new NativeError("spawn expects a function with no parameters");
+            }
+            var task = new Interpreter(interpreter.globals);
+            task.jit = interpreter.jit;
+            return new Task(executor.submit(() -> wrap(function.call0(task))));
+        }
 
         @Override
         public String toString() {
-            return "<native clock>";
+            return "<native spawn>";
+        }
+    };
+
+    /**
+     * Returns the {@code flush} builtin for an output, which writes out what has been printed so far.
+     */
+    static Native flush(Output output) {
+        return new Native("flush", 0) {
+            @Nullable
+            @Override
+            Object invoke(List<Object> arguments) {
+                output.flush();
+                return null;
+            }
+        };
+    }
+
+    static final Native join = new Native("join", 1) {
+        @Nullable
+        @Override
+        Object invoke(List<Object> arguments) {
+            if (!(arguments.get(0) instanceof Task task)) {
+                throw new NativeError("join expects a task");
+            }
+            return task.join();
+        }
+    };
+
+    static final Native channel = new Native("channel", 0) {
+        @Override
+        Object invoke(List<Object> arguments) {
+            return new Channel();
+        }
+    };
+
+    static final Native send = new Native("send", 2) {
+        @Nullable
+        @Override
+        Object invoke(List<Object> arguments) {
+            if (!(arguments.get(0) instanceof Channel target)) {
+                throw new NativeError("send expects a channel");
+            }
+            target.send(arguments.get(1));
+            return null;
+        }
+    };
+
+    static final Native receive = new Native("receive", 1) {
+        @Nullable
+        @Override
+        Object invoke(List<Object> arguments) {
+            if (!(arguments.get(0) instanceof Channel source)) {
+                throw new NativeError("receive expects a channel");
+            }
+            return source.receive();
         }
     };
 }
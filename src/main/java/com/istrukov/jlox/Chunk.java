@@ -0,0 +1,130 @@
+package com.istrukov.jlox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bytecode of a single function: the instruction stream, a parallel table of source lines and the constant pool.
+ */
+class Chunk {
+    byte[] code = new byte[64];
+    Object[] constants = new Object[16];
+    private int[] lines = new int[64];
+    private int count = 0;
+    private int constantCount = 0;
+    private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+    int count() {
+        return count;
+    }
+
+    void write(byte value, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = value;
+        lines[count] = line;
+        count++;
+    }
+
+    void patch(int offset, byte value) {
+        code[offset] = value;
+    }
+
+    int line(int offset) {
+        return lines[offset];
+    }
+
+    /**
+     * Returns the pool index of the given constant, adding it if needed. Strings and numbers are deduplicated;
+     * functions are always appended since each one is a distinct object.
+     */
+    int addConstant(Object value) {
+        var existing = constantIndices.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        if (value instanceof String || value instanceof Double) {
+            constantIndices.put(value, constantCount);
+        }
+        return constantCount++;
+    }
+
+    String disassemble(String name) {
+        var builder = new StringBuilder();
+        builder.append("== ").append(name).append(" ==\n");
+        int offset = 0;
+        while (offset < count) {
+            offset = disassembleInstruction(builder, offset);
+        }
+        return builder.toString();
+    }
+
+    private int disassembleInstruction(StringBuilder builder, int offset) {
+        builder.append(String.format("%04d %4d ", offset, lines[offset]));
+        byte opcode = code[offset];
+        builder.append(OpCode.name(opcode));
+        switch (opcode) {
+            case OpCode.CONSTANT:
+            case OpCode.GET_GLOBAL:
+            case OpCode.DEFINE_GLOBAL:
+            case OpCode.SET_GLOBAL:
+            case OpCode.GET_PROPERTY:
+            case OpCode.SET_PROPERTY:
+            case OpCode.GET_SUPER:
+            case OpCode.CLASS:
+            case OpCode.METHOD: {
+                int constant = readShort(offset + 1);
+                builder.append(String.format(" %d '%s'\n", constant, Interpreter.stringify(constants[constant])));
+                return offset + 3;
+            }
+            case OpCode.GET_LOCAL:
+            case OpCode.SET_LOCAL:
+            case OpCode.GET_UPVALUE:
+            case OpCode.SET_UPVALUE:
+            case OpCode.CALL:
+                builder.append(String.format(" %d\n", Byte.toUnsignedInt(code[offset + 1])));
+                return offset + 2;
+            case OpCode.JUMP:
+            case OpCode.JUMP_IF_FALSE:
+                builder.append(String.format(" -> %d\n", offset + 3 + readShort(offset + 1)));
+                return offset + 3;
+            case OpCode.LOOP:
+                builder.append(String.format(" -> %d\n", offset + 3 - readShort(offset + 1)));
+                return offset + 3;
+            case OpCode.INVOKE:
+            case OpCode.SUPER_INVOKE: {
+                int constant = readShort(offset + 1);
+                builder.append(String.format(" (%d args) %d '%s'\n", Byte.toUnsignedInt(code[offset + 3]), constant,
+                        constants[constant]));
+                return offset + 4;
+            }
+            case OpCode.CLOSURE: {
+                int constant = readShort(offset + 1);
+                var function = (VmFunction) constants[constant];
+                builder.append(String.format(" %d %s\n", constant, function));
+                offset += 3;
+                for (int i = 0; i < function.upvalueCount; i++) {
+                    boolean isLocal = code[offset] != 0;
+                    int index = Byte.toUnsignedInt(code[offset + 1]);
+                    builder.append(String.format("%04d    |   %s %d\n", offset, isLocal ? "local" : "upvalue", index));
+                    offset += 2;
+                }
+                return offset;
+            }
+            default:
+                builder.append("\n");
+                return offset + 1;
+        }
+    }
+
+    private int readShort(int offset) {
+        return (Byte.toUnsignedInt(code[offset]) << 8) | Byte.toUnsignedInt(code[offset + 1]);
+    }
+}
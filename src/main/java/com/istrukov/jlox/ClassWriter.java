@@ -0,0 +1,420 @@
+package com.istrukov.jlox;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Assembles the class files the {@link Jit} loads: a final class with a handful of static fields and methods, without
+ * exception handlers.
+ *
+ * <p>Classes are written in version 49, which predates stack map frames. The JVM verifies such code by inference, so
+ * the writer only has to track how deep the operand stack gets and how many locals a method uses.
+ */
+final class ClassWriter {
+    private static final int VERSION = 49;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    // The opcodes compiled functions use.
+    static final int ICONST_0 = 0x03;
+    static final int DCONST_0 = 0x0E;
+    static final int DCONST_1 = 0x0F;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int ACONST_NULL = 0x01;
+    static final int ILOAD = 0x15;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3A;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5C;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6B;
+    static final int DDIV = 0x6F;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9A;
+    static final int IFLT = 0x9B;
+    static final int IFGE = 0x9C;
+    static final int IFGT = 0x9D;
+    static final int IFLE = 0x9E;
+    static final int GOTO = 0xA7;
+    static final int ARETURN = 0xB0;
+    static final int RETURN = 0xB1;
+    static final int GETSTATIC = 0xB2;
+    static final int PUTSTATIC = 0xB3;
+    static final int GETFIELD = 0xB4;
+    static final int INVOKEVIRTUAL = 0xB6;
+    static final int INVOKESPECIAL = 0xB7;
+    static final int INVOKESTATIC = 0xB8;
+    static final int ANEWARRAY = 0xBD;
+    static final int CHECKCAST = 0xC0;
+    static final int INSTANCEOF = 0xC1;
+
+    private final ByteArrayDataOutput pool = ByteStreams.newDataOutput();
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolSize = 1;
+    private final int thisClass;
+    private final int superClass;
+    private final int codeAttribute;
+    private final List<int[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassWriter(String name, String superName) {
+        thisClass = classEntry(name);
+        superClass = classEntry(superName);
+        codeAttribute = utf8("Code");
+    }
+
+    void field(int access, String name, String descriptor) {
+        fields.add(new int[]{access, utf8(name), utf8(descriptor)});
+    }
+
+    /**
+     * Starts a method, whose instructions are written to the returned code.
+     */
+    Code method(int access, String name, String descriptor) {
+        var code = new Code(access, utf8(name), utf8(descriptor), argumentSlots(descriptor) + ((access & 0x0008) == 0 ? 1 : 0));
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toByteArray() {
+        var out = ByteStreams.newDataOutput();
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(VERSION);
+        out.writeShort(poolSize);
+        out.write(pool.toByteArray());
+        out.writeShort(ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0);
+        out.writeShort(fields.size());
+        for (var field : fields) {
+            out.writeShort(field[0]);
+            out.writeShort(field[1]);
+            out.writeShort(field[2]);
+            out.writeShort(0);
+        }
+        out.writeShort(methods.size());
+        for (var method : methods) {
+            method.writeTo(out);
+        }
+        out.writeShort(0);
+        return out.toByteArray();
+    }
+
+    private int entry(String key, int slots, Consumer<ByteArrayDataOutput> writer) {
+        var index = entries.get(key);
+        if (index != null) {
+            return index;
+        }
+        if (poolSize + slots > 0xFFFF) {
+            throw new JitCompiler.Unsupported("too many constants");
+        }
+        writer.accept(pool);
+        entries.put(key, poolSize);
+        poolSize += slots;
+        return poolSize - slots;
+    }
+
+    private int utf8(String value) {
+        return entry("U" + value, 1, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    private int classEntry(String name) {
+        int utf8 = utf8(name);
+        return entry("C" + name, 1, out -> {
+            out.writeByte(7);
+            out.writeShort(utf8);
+        });
+    }
+
+    private int stringEntry(String value) {
+        int utf8 = utf8(value);
+        return entry("S" + value, 1, out -> {
+            out.writeByte(8);
+            out.writeShort(utf8);
+        });
+    }
+
+    private int doubleEntry(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        return entry("D" + bits, 2, out -> {
+            out.writeByte(6);
+            out.writeLong(bits);
+        });
+    }
+
+    private int memberEntry(int tag, String owner, String name, String descriptor) {
+        int ownerEntry = classEntry(owner);
+        int nameEntry = utf8(name);
+        int descriptorEntry = utf8(descriptor);
+        int nameAndType = entry("N" + name + ' ' + descriptor, 1, out -> {
+            out.writeByte(12);
+            out.writeShort(nameEntry);
+            out.writeShort(descriptorEntry);
+        });
+        return entry(tag + owner + '.' + name + descriptor, 1, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerEntry);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    /**
+     * Returns how many local or stack slots the arguments of a method descriptor take.
+     */
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            boolean array = false;
+            while (c == '[') {
+                array = true;
+                c = descriptor.charAt(++i);
+            }
+            if (c == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            slots += !array && (c == 'J' || c == 'D') ? 2 : 1;
+            i++;
+        }
+        return slots;
+    }
+
+    private static int returnSlots(String descriptor) {
+        var returned = descriptor.charAt(descriptor.indexOf(')') + 1);
+        if (returned == 'V') {
+            return 0;
+        }
+        return returned == 'J' || returned == 'D' ? 2 : 1;
+    }
+
+    /**
+     * A position in the code of a method that jumps can target before it is marked.
+     */
+    static final class Label {
+        private int position = -1;
+        /**
+         * Operand stack depth at the label, known once something jumps to it.
+         */
+        private int stack = -1;
+        private final List<int[]> jumps = new ArrayList<>();
+    }
+
+    /**
+     * The instructions of one method. Each instruction is written with its effect on the operand stack depth, in
+     * slots, so the writer can size the stack.
+     */
+    final class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int locals;
+
+        private Code(int access, int name, int descriptor, int arguments) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.locals = arguments;
+        }
+
+        /**
+         * Reserves local variable slots, two for a double, and returns the first.
+         */
+        int newLocal(int slots) {
+            locals += slots;
+            return locals - slots;
+        }
+
+        void op(int opcode, int effect) {
+            write(opcode);
+            adjust(effect);
+            if (opcode == ARETURN || opcode == RETURN) {
+                stack = 0;
+            }
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH, 1);
+                write2(value);
+            } else {
+                throw new JitCompiler.Unsupported("integer constant out of range");
+            }
+        }
+
+        void pushDouble(double value) {
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                op(DCONST_0, 2);
+            } else if (value == 1.0) {
+                op(DCONST_1, 2);
+            } else {
+                op(LDC2_W, 2);
+                write2(doubleEntry(value));
+            }
+        }
+
+        void pushString(String value) {
+            pushConstant(stringEntry(value));
+        }
+
+        void pushClass(String name) {
+            pushConstant(classEntry(name));
+        }
+
+        private void pushConstant(int index) {
+            if (index <= 0xFF) {
+                op(LDC, 1);
+                write(index);
+            } else {
+                op(LDC_W, 1);
+                write2(index);
+            }
+        }
+
+        /**
+         * Writes a load or store of a local variable.
+         */
+        void local(int opcode, int index, int effect) {
+            if (index > 0xFF) {
+                write(0xC4);
+                op(opcode, effect);
+                write2(index);
+            } else {
+                op(opcode, effect);
+                write(index);
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int effect = returnSlots(descriptor) - argumentSlots(descriptor) - (opcode == INVOKESTATIC ? 0 : 1);
+            op(opcode, effect);
+            write2(memberEntry(10, owner, name, descriptor));
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            int size = descriptor.equals("J") || descriptor.equals("D") ? 2 : 1;
+            op(opcode, opcode == GETSTATIC ? size : opcode == PUTSTATIC ? -size : size - 1);
+            write2(memberEntry(9, owner, name, descriptor));
+        }
+
+        /**
+         * Writes an instruction taking a class operand, such as {@link #CHECKCAST}.
+         */
+        void type(int opcode, String type) {
+            op(opcode, 0);
+            write2(classEntry(type));
+        }
+
+        void jump(int opcode, Label target) {
+            int start = length;
+            op(opcode, opcode == GOTO ? 0 : -1);
+            if (target.stack < 0) {
+                target.stack = stack;
+            }
+            if (target.position >= 0) {
+                write2(offset(start, target.position));
+            } else {
+                target.jumps.add(new int[]{start, length});
+                write2(0);
+            }
+            if (opcode == GOTO) {
+                stack = 0;
+            }
+        }
+
+        void mark(Label label) {
+            label.position = length;
+            for (var jump : label.jumps) {
+                int offset = offset(jump[0], length);
+                bytes[jump[1]] = (byte) (offset >> 8);
+                bytes[jump[1] + 1] = (byte) offset;
+            }
+            label.jumps.clear();
+            if (label.stack >= 0) {
+                stack = label.stack;
+            } else {
+                label.stack = stack;
+            }
+        }
+
+        private int offset(int from, int to) {
+            int offset = to - from;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new JitCompiler.Unsupported("method too large");
+            }
+            return offset;
+        }
+
+        private void adjust(int effect) {
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void write(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void write2(int value) {
+            write(value >> 8);
+            write(value);
+        }
+
+        private void writeTo(ByteArrayDataOutput out) {
+            if (length > 0xFFFF) {
+                throw new JitCompiler.Unsupported("method too large");
+            }
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(locals);
+            out.writeInt(length);
+            out.write(bytes, 0, length);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+import java.util.Objects;
+
+/**
+ * Superclass of the classes the {@link Jit} generates for hot functions. A generated class overrides the entry point
+ * for its function's arity, and keeps the nodes, values and {@link LoxCallSite}s its code refers to in static final
+ * fields, which HotSpot treats as constants.
+ *
+ * <p>Compiled code checks on entry that the arguments have the types the function was compiled for. If they do not,
+ * it returns {@link #DEOPTIMIZED} before doing anything else, and the caller runs the function in the interpreter
+ * instead. The static methods here are the slow paths compiled code calls for operands of types it did not expect.
+ */
+abstract class CompiledFunction {
+    /**
+     * Returned by an entry point whose arguments failed the type checks.
+     */
+    static final Object DEOPTIMIZED = new Object();
+
+    private final Jit jit;
+
+    CompiledFunction(Jit jit) {
+        this.jit = jit;
+    }
+
+    @Nullable
+    Object call0(Interpreter interpreter) {
+        throw new IllegalStateException("wrong entry point");
+    }
+
+    @Nullable
+    Object call1(Interpreter interpreter, @Nullable Object first) {
+        throw new IllegalStateException("wrong entry point");
+    }
+
+    @Nullable
+    Object call2(Interpreter interpreter, @Nullable Object first, @Nullable Object second) {
+        throw new IllegalStateException("wrong entry point");
+    }
+
+    @Nullable
+    Object call3(Interpreter interpreter, @Nullable Object first, @Nullable Object second, @Nullable Object third) {
+        throw new IllegalStateException("wrong entry point");
+    }
+
+    @Nullable
+    Object call(Interpreter interpreter, Object[] arguments) {
+        throw new IllegalStateException("wrong entry point");
+    }
+
+    /**
+     * Discards this code, so the function is interpreted and profiled again, and returns {@link #DEOPTIMIZED}.
+     */
+    final Object deoptimize() {
+        jit.deoptimize(this);
+        return DEOPTIMIZED;
+    }
+
+    static double arithmetic(Expr.Binary binary, @Nullable Object left, @Nullable Object right) {
+        return (double) Objects.requireNonNull(BinaryNode.GENERIC.execute(binary, left, right));
+    }
+
+    static boolean compare(Expr.Binary binary, @Nullable Object left, @Nullable Object right) {
+        return (boolean) Objects.requireNonNull(BinaryNode.GENERIC.execute(binary, left, right));
+    }
+
+    @Nullable
+    static Object binary(Expr.Binary binary, @Nullable Object left, @Nullable Object right) {
+        return BinaryNode.GENERIC.execute(binary, left, right);
+    }
+
+    static double negate(Expr.Unary unary, @Nullable Object operand) {
+        return (double) Objects.requireNonNull(UnaryNode.GENERIC.execute(unary, operand));
+    }
+
+    /**
+     * Compares two numbers the way {@link Interpreter#isEqual} compares boxed ones.
+     */
+    static boolean equal(double left, double right) {
+        return Double.compare(left, right) == 0;
+    }
+
+    @Nullable
+    static Object get(Expr.Get get, @Nullable Object object) {
+        return get.cache.get(Interpreter.instance(get.name, object), get.name);
+    }
+
+    static LoxInstance instance(Expr.Set set, @Nullable Object object) {
+        return Interpreter.instance(set.name, object);
+    }
+
+    @Nullable
+    static Object set(Expr.Set set, LoxInstance instance, @Nullable Object value) {
+        set.cache.set(instance, set.name, value);
+        return value;
+    }
+}
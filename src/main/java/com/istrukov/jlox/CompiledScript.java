@@ -0,0 +1,58 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A script that has been scanned, parsed and resolved by {@link LoxEngine#compile} and can be run any number of
+ * times. Runs are independent and may happen concurrently on different threads, as long as they do not share a
+ * {@link Globals}.
+ */
+public final class CompiledScript {
+    final ImmutableList<Stmt> program;
+    private final ImmutableList<LoxError> errors;
+
+    CompiledScript(ImmutableList<Stmt> program, ImmutableList<LoxError> errors) {
+        this.program = program;
+        this.errors = errors;
+    }
+
+    /**
+     * Returns the compile errors; a script with errors does not run.
+     */
+    public ImmutableList<LoxError> errors() {
+        return errors;
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    /**
+     * Runs the script against fresh globals.
+     */
+    public ExecutionResult run() {
+        return run(new Globals());
+    }
+
+    /**
+     * Runs the script against the given globals, which keep the script's top-level definitions afterwards and can be
+     * passed to later runs.
+     */
+    public ExecutionResult run(Globals globals) {
+        return run(new Interpreter(globals));
+    }
+
+    ExecutionResult run(Interpreter interpreter) {
+        if (hasErrors()) {
+            return new ExecutionResult(errors);
+        }
+        try {
+            interpreter.interpret(program);
+        } catch (RuntimeError error) {
+            return new ExecutionResult(ImmutableList.of(LoxError.runtime(error)));
+        } finally {
+            interpreter.globals.output().flush();
+        }
+        return ExecutionResult.SUCCESS;
+    }
+}
@@ -0,0 +1,619 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a resolved program into bytecode for the {@link VirtualMachine}. The resolver has already reported all
+ * static errors, so the compiler only checks the limits of the bytecode format itself.
+ */
+class Compiler implements Visitor<Void> {
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+    private static final int MAX_CONSTANTS = 65536;
+    private static final int MAX_JUMP = 65535;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    private static class Local {
+        final String name;
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class ClassCompiler {
+        @Nullable
+        final ClassCompiler enclosing;
+        boolean hasSuperclass = false;
+
+        ClassCompiler(@Nullable ClassCompiler enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    @Nullable
+    private final Compiler enclosing;
+    private final VmFunction function;
+    private final ErrorReporter reporter;
+    private final FunctionType type;
+    private final List<Local> locals = new ArrayList<>();
+    private final List<Upvalue> upvalues = new ArrayList<>();
+    @Nullable
+    private ClassCompiler currentClass;
+    private int scopeDepth = 0;
+    private int line;
+
+    private Compiler(@Nullable Compiler enclosing, ErrorReporter reporter, VmFunction function, FunctionType type) {
+        this.enclosing = enclosing;
+        this.reporter = reporter;
+        this.function = function;
+        this.type = type;
+        if (enclosing != null) {
+            this.currentClass = enclosing.currentClass;
+            this.line = enclosing.line;
+        } else {
+            this.currentClass = null;
+            this.line = 1;
+        }
+        // Slot zero holds the callee itself, or the receiver in methods.
+        var isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+        locals.add(new Local(isMethod ? "this" : "", 0));
+    }
+
+    static VmFunction compile(ImmutableList<Stmt> program, ErrorReporter reporter) {
+        var compiler = new Compiler(null, reporter, new VmFunction("", 0), FunctionType.SCRIPT);
+        for (var stmt : program) {
+            compiler.compile(stmt);
+        }
+        return compiler.endFunction();
+    }
+
+    private void compile(AstNode node) {
+        node.accept(this);
+    }
+
+    private VmFunction endFunction() {
+        emitReturn();
+        function.upvalueCount = upvalues.size();
+        return function;
+    }
+
+    @Nullable
+    @Override
+    public Void visitBinary(Expr.Binary binary) {
+        compile(binary.left);
+        compile(binary.right);
+        line = binary.operator.line();
+        switch (binary.operator.type()) {
+            case PLUS:
+                emit(OpCode.ADD);
+                break;
+            case MINUS:
+                emit(OpCode.SUBTRACT);
+                break;
+            case STAR:
+                emit(OpCode.MULTIPLY);
+                break;
+            case SLASH:
+                emit(OpCode.DIVIDE);
+                break;
+            case GREATER:
+                emit(OpCode.GREATER);
+                break;
+            case GREATER_EQUAL:
+                emit(OpCode.GREATER_EQUAL);
+                break;
+            case LESS:
+                emit(OpCode.LESS);
+                break;
+            case LESS_EQUAL:
+                emit(OpCode.LESS_EQUAL);
+                break;
+            case EQUAL_EQUAL:
+                emit(OpCode.EQUAL);
+                break;
+            case BANG_EQUAL:
+                emit(OpCode.EQUAL);
+                emit(OpCode.NOT);
+                break;
+            default:
+                emit(OpCode.POP);
+                emit(OpCode.POP);
+                emit(OpCode.NIL);
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitUnary(Expr.Unary unary) {
+        compile(unary.right);
+        line = unary.operator.line();
+        switch (unary.operator.type()) {
+            case MINUS:
+                emit(OpCode.NEGATE);
+                break;
+            case BANG:
+                emit(OpCode.NOT);
+                break;
+            default:
+                emit(OpCode.POP);
+                emit(OpCode.NIL);
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitGrouping(Expr.Grouping grouping) {
+        compile(grouping.expression);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitLiteral(Expr.Literal literal) {
+        if (literal.value.isBoolean()) {
+            emit(literal.value.asBoolean() ? OpCode.TRUE : OpCode.FALSE);
+        } else if (literal.value.isNumber()) {
+            emitConstant(literal.value.asNumber());
+        } else if (literal.value.isString()) {
+            emitConstant(literal.value.asString());
+        } else {
+            emit(OpCode.NIL);
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitLogical(Expr.Logical logical) {
+        // Like the tree-walking interpreter, a short-circuited 'and' yields false and a short-circuited 'or' yields
+        // true rather than the left operand.
+        compile(logical.left);
+        line = logical.operator.line();
+        int shortCircuit = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        if (logical.operator.type() == TokenType.AND) {
+            compile(logical.right);
+            int end = emitJump(OpCode.JUMP);
+            patchJump(shortCircuit);
+            emit(OpCode.POP);
+            emit(OpCode.FALSE);
+            patchJump(end);
+        } else {
+            emit(OpCode.TRUE);
+            int end = emitJump(OpCode.JUMP);
+            patchJump(shortCircuit);
+            emit(OpCode.POP);
+            compile(logical.right);
+            patchJump(end);
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitVariableReference(Expr.VariableReference variableReference) {
+        line = variableReference.name.line();
+        loadVariable(variableReference.name.lexeme());
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitAssignment(Expr.Assignment assignment) {
+        compile(assignment.expression);
+        line = assignment.name.line();
+        var name = assignment.name.lexeme();
+        int arg = resolveLocal(name);
+        if (arg != -1) {
+            emit(OpCode.SET_LOCAL);
+            emit((byte) arg);
+        } else if ((arg = resolveUpvalue(name)) != -1) {
+            emit(OpCode.SET_UPVALUE);
+            emit((byte) arg);
+        } else {
+            emitWithConstant(OpCode.SET_GLOBAL, name);
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitCall(Expr.Call call) {
+        if (call.callee instanceof Expr.Get get) {
+            compile(get.object);
+            compileArguments(call.arguments);
+            line = call.paren.line();
+            emitWithConstant(OpCode.INVOKE, get.name.lexeme());
+            emit((byte) call.arguments.size());
+        } else if (call.callee instanceof Expr.Super superExpr) {
+            line = superExpr.keyword.line();
+            loadVariable("this");
+            compileArguments(call.arguments);
+            loadVariable("super");
+            line = call.paren.line();
+            emitWithConstant(OpCode.SUPER_INVOKE, superExpr.method.lexeme());
+            emit((byte) call.arguments.size());
+        } else {
+            compile(call.callee);
+            compileArguments(call.arguments);
+            line = call.paren.line();
+            emit(OpCode.CALL);
+            emit((byte) call.arguments.size());
+        }
+        return null;
+    }
+
+    private void compileArguments(ImmutableList<Expr> arguments) {
+        for (var argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Void visitGet(Expr.Get get) {
+        compile(get.object);
+        line = get.name.line();
+        emitWithConstant(OpCode.GET_PROPERTY, get.name.lexeme());
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitSet(Expr.Set set) {
+        compile(set.object);
+        compile(set.value);
+        line = set.name.line();
+        emitWithConstant(OpCode.SET_PROPERTY, set.name.lexeme());
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitThis(Expr.This expr) {
+        line = expr.keyword.line();
+        loadVariable("this");
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitSuper(Expr.Super expr) {
+        line = expr.keyword.line();
+        loadVariable("this");
+        loadVariable("super");
+        emitWithConstant(OpCode.GET_SUPER, expr.method.lexeme());
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitExpression(Stmt.Expression expression) {
+        compile(expression.expression);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitPrint(Stmt.Print print) {
+        compile(print.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitVar(Stmt.VariableDeclaration variableDeclaration) {
+        line = variableDeclaration.name.line();
+        declareVariable(variableDeclaration.name);
+        if (variableDeclaration.initializer.isPresent()) {
+            compile(variableDeclaration.initializer.get());
+        } else {
+            emit(OpCode.NIL);
+        }
+        defineVariable(variableDeclaration.name);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitBlock(Stmt.Block block) {
+        beginScope();
+        for (var stmt : block.statements) {
+            compile(stmt);
+        }
+        endScope();
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitIf(Stmt.If anIf) {
+        compile(anIf.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(anIf.thenBranch);
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+        anIf.elseBranch.ifPresent(this::compile);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitWhile(Stmt.While aWhile) {
+        int loopStart = function.chunk.count();
+        compile(aWhile.condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(aWhile.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitFunction(Stmt.Function fun) {
+        line = fun.name.line();
+        declareVariable(fun.name);
+        markInitialized();
+        compileFunction(fun, FunctionType.FUNCTION);
+        defineVariable(fun.name);
+        return null;
+    }
+
+    private void compileFunction(Stmt.Function fun, FunctionType functionType) {
+        var compiler = new Compiler(this, reporter, new VmFunction(fun.name.lexeme(), fun.params.size()), functionType);
+        compiler.beginScope();
+        for (var param : fun.params) {
+            compiler.declareVariable(param);
+            compiler.markInitialized();
+        }
+        for (var stmt : fun.body) {
+            compiler.compile(stmt);
+        }
+        var compiled = compiler.endFunction();
+        emitWithConstant(OpCode.CLOSURE, compiled);
+        for (var upvalue : compiler.upvalues) {
+            emit((byte) (upvalue.isLocal ? 1 : 0));
+            emit((byte) upvalue.index);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Void visitReturn(Stmt.Return aReturn) {
+        line = aReturn.keyword.line();
+        if (aReturn.value.isPresent()) {
+            compile(aReturn.value.get());
+            emit(OpCode.RETURN);
+        } else {
+            emitReturn();
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Void visitClass(Stmt.Class aClass) {
+        line = aClass.name.line();
+        declareVariable(aClass.name);
+        emitWithConstant(OpCode.CLASS, aClass.name.lexeme());
+        defineVariable(aClass.name);
+
+        var classCompiler = new ClassCompiler(currentClass);
+        currentClass = classCompiler;
+
+        if (aClass.superclass.isPresent()) {
+            compile(aClass.superclass.get());
+            beginScope();
+            addLocal("super");
+            markInitialized();
+            loadVariable(aClass.name.lexeme());
+            emit(OpCode.INHERIT);
+            classCompiler.hasSuperclass = true;
+        }
+
+        loadVariable(aClass.name.lexeme());
+        for (var method : aClass.methods) {
+            line = method.name.line();
+            var methodType = method.name.lexeme().equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            compileFunction(method, methodType);
+            emitWithConstant(OpCode.METHOD, method.name.lexeme());
+        }
+        emit(OpCode.POP);
+
+        if (classCompiler.hasSuperclass) {
+            endScope();
+        }
+        currentClass = classCompiler.enclosing;
+        return null;
+    }
+
+    private void beginScope() {
+        scopeDepth++;
+    }
+
+    private void endScope() {
+        scopeDepth--;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > scopeDepth) {
+            var local = locals.remove(locals.size() - 1);
+            emit(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+    }
+
+    private void declareVariable(Token name) {
+        if (scopeDepth == 0) {
+            return;
+        }
+        addLocal(name.lexeme());
+    }
+
+    private void addLocal(String name) {
+        if (locals.size() == MAX_LOCALS) {
+            reporter.error(line, "too many local variables in function");
+            return;
+        }
+        locals.add(new Local(name, -1));
+    }
+
+    private void markInitialized() {
+        if (scopeDepth == 0) {
+            return;
+        }
+        locals.get(locals.size() - 1).depth = scopeDepth;
+    }
+
+    private void defineVariable(Token name) {
+        if (scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        emitWithConstant(OpCode.DEFINE_GLOBAL, name.lexeme());
+    }
+
+    private void loadVariable(String name) {
+        int arg = resolveLocal(name);
+        if (arg != -1) {
+            emit(OpCode.GET_LOCAL);
+            emit((byte) arg);
+        } else if ((arg = resolveUpvalue(name)) != -1) {
+            emit(OpCode.GET_UPVALUE);
+            emit((byte) arg);
+        } else {
+            emitWithConstant(OpCode.GET_GLOBAL, name);
+        }
+    }
+
+    private int resolveLocal(String name) {
+        for (int i = locals.size() - 1; i >= 0; i--) {
+            if (locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(String name) {
+        if (enclosing == null) {
+            return -1;
+        }
+        int local = enclosing.resolveLocal(name);
+        if (local != -1) {
+            enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(local, true);
+        }
+        int upvalue = enclosing.resolveUpvalue(name);
+        if (upvalue != -1) {
+            return addUpvalue(upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(int index, boolean isLocal) {
+        for (int i = 0; i < upvalues.size(); i++) {
+            var upvalue = upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+        if (upvalues.size() == MAX_UPVALUES) {
+            reporter.error(line, "too many closure variables in function");
+            return 0;
+        }
+        upvalues.add(new Upvalue(index, isLocal));
+        return upvalues.size() - 1;
+    }
+
+    private void emit(byte value) {
+        function.chunk.write(value, line);
+    }
+
+    private void emitShort(int value) {
+        emit((byte) ((value >> 8) & 0xff));
+        emit((byte) (value & 0xff));
+    }
+
+    private void emitConstant(Object value) {
+        emitWithConstant(OpCode.CONSTANT, value);
+    }
+
+    private void emitWithConstant(byte opcode, Object value) {
+        emit(opcode);
+        emitShort(makeConstant(value));
+    }
+
+    private int makeConstant(Object value) {
+        int constant = function.chunk.addConstant(value);
+        if (constant >= MAX_CONSTANTS) {
+            reporter.error(line, "too many constants in one chunk");
+            return 0;
+        }
+        return constant;
+    }
+
+    private void emitReturn() {
+        if (type == FunctionType.INITIALIZER) {
+            emit(OpCode.GET_LOCAL);
+            emit((byte) 0);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+    }
+
+    private int emitJump(byte opcode) {
+        emit(opcode);
+        emitShort(0xffff);
+        return function.chunk.count() - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = function.chunk.count() - offset - 2;
+        if (jump > MAX_JUMP) {
+            reporter.error(line, "too much code to jump over");
+        }
+        function.chunk.patch(offset, (byte) ((jump >> 8) & 0xff));
+        function.chunk.patch(offset + 1, (byte) (jump & 0xff));
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+        int offset = function.chunk.count() - loopStart + 2;
+        if (offset > MAX_JUMP) {
+            reporter.error(line, "loop body too large");
+        }
+        emitShort(offset);
+    }
+}
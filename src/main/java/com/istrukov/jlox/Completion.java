@@ -0,0 +1,10 @@
+package com.istrukov.jlox;
+
+/**
+ * How a statement finished executing. Statements that transfer control, like {@code return}, report it to the
+ * enclosing blocks and loops through this value instead of unwinding the Java stack with an exception.
+ */
+enum Completion {
+    NORMAL,
+    RETURN
+}
@@ -1,61 +1,46 @@
 package com.istrukov.jlox;
 
 import javax.annotation.Nullable;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
 
 class Environment {
-    final Optional<Environment> enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    @Nullable
+    final Environment enclosing;
+    private final Object[] values;
 
     Environment() {
-        enclosing = Optional.empty();
+        this.enclosing = null;
+        this.values = new Object[0];
     }
 
-    Environment(Environment enclosing) {
-        this.enclosing = Optional.of(enclosing);
+    Environment(Environment enclosing, int size) {
+        this.enclosing = enclosing;
+        this.values = new Object[size];
     }
 
-    void define(String name, @Nullable Object value) {
-        values.put(name, value);
+    void define(int slot, @Nullable Object value) {
+        values[slot] = value;
     }
 
-    public void assign(Token name, @Nullable Object value) {
-        if (values.containsKey(name.lexeme())) {
-            values.put(name.lexeme(), value);
-            return;
-        }
-        if (enclosing.isPresent()) {
-            enclosing.get().assign(name, value);
-            return;
-        }
-        throw new RuntimeError(name, String.format("undefined variable %s", name.lexeme()));
+    @Nullable
+    Object get(int slot) {
+        return values[slot];
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme())) {
-            return values.get(name.lexeme());
-        }
-        if (enclosing.isPresent()) {
-            return enclosing.get().get(name);
-        }
-        throw new RuntimeError(name, String.format("undefined variable %s", name.lexeme()));
+    @Nullable
+    public Object getAt(int distance, int slot) {
+        return ancestor(distance).values[slot];
     }
 
-    public Object getAt(Integer distance, Token name) {
-        return ancestor(distance).get(name);
+    public void assignAt(int distance, int slot, @Nullable Object value) {
+        ancestor(distance).values[slot] = value;
     }
 
-    private Environment ancestor(Integer distance) {
+    private Environment ancestor(int distance) {
         var environment = this;
         for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing.get();
+            environment = Objects.requireNonNull(environment.enclosing);
         }
         return environment;
     }
-
-    public void assignAt(Integer distance, Token name, @Nullable Object value) {
-        ancestor(distance).values.put(name.lexeme(), value);
-    }
 }
@@ -0,0 +1,37 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the compile errors reported by the scanner, parser, resolver and bytecode compiler for one script.
+ */
+class ErrorReporter {
+    private final List<LoxError> errors = new ArrayList<>();
+
+    void error(Token token, String message) {
+        if (token.type() == TokenType.EOF) {
+            report(token.line(), " at end", message);
+        } else {
+            report(token.line(), String.format(" at '%s'", token.lexeme()), message);
+        }
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    private void report(int line, String where, String message) {
+        errors.add(new LoxError(LoxError.Kind.COMPILE, line, where, message));
+    }
+
+    boolean hadError() {
+        return !errors.isEmpty();
+    }
+
+    ImmutableList<LoxError> errors() {
+        return ImmutableList.copyOf(errors);
+    }
+}
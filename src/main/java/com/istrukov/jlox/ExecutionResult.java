@@ -0,0 +1,15 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Outcome of running a {@link CompiledScript}: the compile errors that kept it from running, the runtime error that
+ * stopped it, or nothing if it ran to completion.
+ */
+public record ExecutionResult(ImmutableList<LoxError> errors) {
+    static final ExecutionResult SUCCESS = new ExecutionResult(ImmutableList.of());
+
+    public boolean succeeded() {
+        return errors.isEmpty();
+    }
+}
@@ -5,10 +5,53 @@ import com.google.common.collect.ImmutableList;
 import javax.annotation.Nullable;
 
 abstract class Expr extends AstNode {
+    /**
+     * What an expression is known to produce before the program runs, as inferred by the {@link TypeInferrer}.
+     * {@link #UNKNOWN} covers everything the inference cannot tell, including values of several types. The interpreter
+     * takes conditions typed {@link #BOOLEAN} as they are, without testing them for truthiness.
+     */
+    enum Type {
+        NUMBER,
+        STRING,
+        BOOLEAN,
+        NIL,
+        INSTANCE,
+        UNKNOWN
+    }
+
+    Type type = Type.UNKNOWN;
+
+    /**
+     * An expression that reads or writes a variable. The resolver fills in where the variable lives: in slot
+     * {@code slot} of the current call frame if {@code depth} is {@link #FRAME}, or {@code depth} environments up from
+     * the current one, at index {@code slot}. Globals keep depth {@link #GLOBAL}.
+     */
+    abstract static class VariableAccess extends Expr {
+        static final int GLOBAL = -1;
+        static final int FRAME = -2;
+
+        int depth = GLOBAL;
+        int slot = -1;
+        /**
+         * Cell of the global this expression was last run against, or null if it is local or has not run yet.
+         */
+        @Nullable
+        Globals.Cell global = null;
+
+        boolean isGlobal() {
+            return depth == GLOBAL;
+        }
+
+        boolean isInFrame() {
+            return depth == FRAME;
+        }
+    }
+
     static class Binary extends Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        BinaryNode node = BinaryNode.UNINITIALIZED;
 
         Binary(Expr left, Token operator, Expr right) {
             this.left = left;
@@ -26,6 +69,7 @@ abstract class Expr extends AstNode {
     static class Unary extends Expr {
         final Token operator;
         final Expr right;
+        UnaryNode node = UnaryNode.UNINITIALIZED;
 
         Unary(Token operator, Expr right) {
             this.operator = operator;
@@ -55,9 +99,20 @@ abstract class Expr extends AstNode {
 
     static class Literal extends Expr {
         final Token.Literal value;
+        @Nullable
+        final Object constant;
 
         Literal(Token.Literal value) {
             this.value = value;
+            if (value.isBoolean()) {
+                this.constant = value.asBoolean();
+            } else if (value.isNumber()) {
+                this.constant = value.asNumber();
+            } else if (value.isString()) {
+                this.constant = value.asString();
+            } else {
+                this.constant = null;
+            }
         }
 
         @Nullable
@@ -67,7 +122,7 @@ abstract class Expr extends AstNode {
         }
     }
 
-    static class VariableReference extends Expr {
+    static class VariableReference extends VariableAccess {
         final Token name;
 
         public VariableReference(Token name) {
@@ -81,7 +136,7 @@ abstract class Expr extends AstNode {
         }
     }
 
-    static class Assignment extends Expr {
+    static class Assignment extends VariableAccess {
         final Token name;
         final Expr expression;
 
@@ -119,6 +174,12 @@ abstract class Expr extends AstNode {
         final Expr callee;
         final Token paren;
         final ImmutableList<Expr> arguments;
+        /**
+         * Site compiled code calls through, created by the first compilation of the enclosing function and kept by
+         * later ones, so what it linked to carries over.
+         */
+        @Nullable
+        LoxCallSite site = null;
 
         Call(Expr callee, Token paren, ImmutableList<Expr> arguments) {
             this.callee = callee;
@@ -136,6 +197,7 @@ abstract class Expr extends AstNode {
     static class Get extends Expr {
         final Expr object;
         final Token name;
+        final PropertyCache cache = new PropertyCache();
 
         Get(Expr object, Token name) {
             this.object = object;
@@ -153,6 +215,7 @@ abstract class Expr extends AstNode {
         final Expr object;
         final Token name;
         final Expr value;
+        final PropertyCache cache = new PropertyCache();
 
         Set(Expr object, Token name, Expr value) {
             this.object = object;
@@ -167,7 +230,7 @@ abstract class Expr extends AstNode {
         }
     }
 
-    static class This extends Expr {
+    static class This extends VariableAccess {
         final Token keyword;
 
         This(Token keyword) {
@@ -181,13 +244,18 @@ abstract class Expr extends AstNode {
         }
     }
 
-    static class Super extends Expr {
+    static class Super extends VariableAccess {
         final Token keyword;
         final Token method;
+        /**
+         * Access to the 'this' the method is bound to, resolved alongside 'super' itself.
+         */
+        final This receiver;
 
         Super(Token keyword, Token method) {
             this.keyword = keyword;
             this.method = method;
+            this.receiver = new This(keyword);
         }
 
         @Nullable
@@ -0,0 +1,136 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Global variables of a script run, starting out with the builtins. Safe to share between the tasks of a script and
+ * between concurrent runs.
+ *
+ * <p>Each global lives in a {@link Cell}. Cells are created the first time a name is mentioned, even if it is never
+ * defined, and are never removed, so an expression can look its cell up once and then read it directly; redefining a
+ * global only changes the value in its cell.
+ *
+ * <p>Globals also hold the {@link Output} that the scripts run against them print to, standard out unless another
+ * writer is given.
+ */
+public class Globals {
+    private static final Object UNDEFINED = new Object();
+
+    /**
+     * Storage of one global. An expression caches the cell it is bound to, and checks {@link #owner} because one
+     * program may run against several globals.
+     */
+    static final class Cell {
+        final Globals owner;
+        @Nullable
+        volatile Object value = UNDEFINED;
+
+        Cell(Globals owner) {
+            this.owner = owner;
+        }
+
+        @Nullable
+        Object get(Token name) {
+            var current = value;
+            if (current == UNDEFINED) {
+                throw new RuntimeError(name, String.format("undefined variable %s", name.lexeme()));
+            }
+            return current;
+        }
+
+        void assign(Token name, @Nullable Object newValue) {
+            if (value == UNDEFINED) {
+                throw new RuntimeError(name, String.format("undefined variable %s", name.lexeme()));
+            }
+            value = newValue;
+        }
+    }
+
+    private final ConcurrentMap<Symbol, Cell> cells = new ConcurrentHashMap<>();
+    private final Output output;
+
+    public Globals() {
+        this(Output.standard());
+    }
+
+    /**
+     * Creates globals whose scripts print to the given writer. Output is buffered and written to it whenever a run
+     * ends, so the writer itself need not buffer.
+     */
+    public Globals(Writer output) {
+        this(output, Output.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates globals whose scripts print to the given writer, also writing to it whenever the buffered output reaches
+     * the given number of characters.
+     */
+    public Globals(Writer output, int bufferSize) {
+        this(new Output(output, bufferSize));
+    }
+
+    private Globals(Output output) {
+        this.output = output;
+        define("clock", Builtin.clock);
+        define("spawn", Builtin.spawn);
+        define("join", Builtin.join);
+        define("channel", Builtin.channel);
+        define("send", Builtin.send);
+        define("receive", Builtin.receive);
+        define("flush", Builtin.flush(output));
+    }
+
+    Output output() {
+        return output;
+    }
+
+    public void define(String name, @Nullable Object value) {
+        define(Symbol.of(name), value);
+    }
+
+    void define(Symbol name, @Nullable Object value) {
+        cell(name).value = value;
+    }
+
+    public boolean isDefined(String name) {
+        var cell = cells.get(Symbol.of(name));
+        return cell != null && cell.value != UNDEFINED;
+    }
+
+    /**
+     * Returns the value of a global, which is null both for nil and for undefined names. Strings are always returned
+     * as a {@code String}, flattening a {@link Rope}.
+     */
+    @Nullable
+    public Object get(String name) {
+        var cell = cells.get(Symbol.of(name));
+        if (cell == null) {
+            return null;
+        }
+        var value = cell.value;
+        if (value instanceof Rope rope) {
+            return rope.toString();
+        }
+        return value == UNDEFINED ? null : value;
+    }
+
+    public void assign(Token name, @Nullable Object value) {
+        cell(name.symbol()).assign(name, value);
+    }
+
+    @Nullable
+    Object get(Token name) {
+        return cell(name.symbol()).get(name);
+    }
+
+    Cell cell(Symbol name) {
+        var cell = cells.get(name);
+        if (cell != null) {
+            return cell;
+        }
+        return cells.computeIfAbsent(name, n -> new Cell(this));
+    }
+}
@@ -0,0 +1,81 @@
+package com.istrukov.jlox;
+
+/**
+ * Maps the names found in a source to their {@link Symbol}, so each distinct name is copied out of the source and
+ * looked up in the global symbol table only once per scan. Names are compared against the source text of their first
+ * occurrence, so this works the same on a {@link Utf8Source}.
+ */
+final class Interner {
+    private final CharSequence source;
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    private Symbol[] names = new Symbol[256];
+    private int size = 0;
+
+    Interner(CharSequence source) {
+        this.source = source;
+    }
+
+    Symbol intern(int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = names.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            var name = names[index];
+            if (name == null) {
+                name = Symbol.of(source.subSequence(start, end).toString());
+                insert(index, start, end - start, name);
+                return name;
+            }
+            if (lengths[index] == end - start && regionMatches(starts[index], start, end - start)) {
+                return name;
+            }
+        }
+    }
+
+    private boolean regionMatches(int first, int second, int length) {
+        for (int i = 0; i < length; i++) {
+            if (source.charAt(first + i) != source.charAt(second + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(int index, int start, int length, Symbol name) {
+        starts[index] = start;
+        lengths[index] = length;
+        names[index] = name;
+        if (++size * 2 > names.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        var oldStarts = starts;
+        var oldLengths = lengths;
+        var oldNames = names;
+        starts = new int[oldNames.length * 2];
+        lengths = new int[oldNames.length * 2];
+        names = new Symbol[oldNames.length * 2];
+        int mask = names.length - 1;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] == null) {
+                continue;
+            }
+            int hash = 0;
+            for (int j = oldStarts[i]; j < oldStarts[i] + oldLengths[i]; j++) {
+                hash = 31 * hash + source.charAt(j);
+            }
+            int index = hash & mask;
+            while (names[index] != null) {
+                index = (index + 1) & mask;
+            }
+            starts[index] = oldStarts[i];
+            lengths[index] = oldLengths[i];
+            names[index] = oldNames[i];
+        }
+    }
+}
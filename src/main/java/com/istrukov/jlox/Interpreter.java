@@ -4,20 +4,42 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
 import javax.annotation.Nullable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Objects;
 import java.util.Optional;
 
 class Interpreter implements Visitor<Object> {
-    Environment globals = new Environment();
-    private Environment environment = globals;
-    Map<Expr, Integer> locals = new HashMap<>();
+    final Globals globals;
+    private Environment environment = new Environment();
+    /**
+     * Value stack holding the frames of active calls, for the locals no closure captures. The slots of a frame are
+     * cleared when its call returns, so values it held can be collected even after the stack grew for a deep
+     * recursion.
+     */
+    Object[] stack = new Object[256];
+    /**
+     * Start of the current frame, and the end of the last frame, where a call puts its own.
+     */
+    private int frame = 0;
+    private int top = 0;
+    @Nullable
+    private Object returnValue = null;
+    @Nullable
+    Profiler profiler = null;
+    /**
+     * Whether hot functions are compiled to JVM bytecode by the {@link Jit}.
+     */
+    boolean jit = false;
 
     Interpreter() {
-        globals.define("clock", Builtin.clock);
+        this(new Globals());
+    }
+
+    Interpreter(Globals globals) {
+        this.globals = globals;
     }
 
-    private static String stringify(@Nullable Object object) {
+    static String stringify(@Nullable Object object) {
         if (object == null) {
             return "nil";
         }
@@ -31,18 +53,20 @@ class Interpreter implements Visitor<Object> {
         return object.toString();
     }
 
+    /**
+     * Executes a resolved program, throwing {@link RuntimeError} if it fails.
+     */
     void interpret(ImmutableList<Stmt> program) {
-        try {
-            for (var stmt : program) {
-                execute(stmt);
-            }
-        } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+        for (var stmt : program) {
+            execute(stmt);
         }
     }
 
-    void execute(Stmt stmt) {
-        stmt.accept(this);
+    Completion execute(Stmt stmt) {
+        if (profiler != null) {
+            profiler.statement(stmt.line);
+        }
+        return (Completion) Objects.requireNonNull(stmt.accept(this));
     }
 
     @Nullable
@@ -50,38 +74,65 @@ class Interpreter implements Visitor<Object> {
         return expression.accept(this);
     }
 
+    /**
+     * Evaluates an expression expected to produce a number. Literals and arithmetic already specialized for numbers
+     * are computed on primitive doubles, so nested arithmetic allocates no intermediate boxes.
+     *
+     * @throws UnexpectedResult if the expression produced something other than a number
+     */
+    double evalDouble(Expr expression) {
+        if (expression instanceof Expr.Literal literal && literal.constant instanceof Double) {
+            return (double) literal.constant;
+        }
+        if (expression instanceof Expr.Binary binary && binary.node instanceof BinaryNode.ArithmeticNode arithmetic) {
+            return arithmetic.executeDouble(this, binary);
+        }
+        if (expression instanceof Expr.Grouping grouping) {
+            return evalDouble(grouping.expression);
+        }
+        var value = eval(expression);
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw new UnexpectedResult(value);
+    }
+
     @Nullable
     @Override
     public Object visitVar(Stmt.VariableDeclaration variableDeclaration) {
         Object value = variableDeclaration.initializer.map(this::eval).orElse(null);
-        environment.define(variableDeclaration.name.lexeme(), value);
-        return null;
+        define(variableDeclaration.name, variableDeclaration.slot, variableDeclaration.environmentSlot, value);
+        return Completion.NORMAL;
     }
 
     @Nullable
     @Override
     public Object visitPrint(Stmt.Print print) {
-        var result = eval(print.expression);
-        System.out.println(stringify(result));
-        return null;
+        print(eval(print.expression));
+        return Completion.NORMAL;
+    }
+
+    void print(@Nullable Object value) {
+        globals.output().println(stringify(value));
     }
 
     @Nullable
     @Override
     public Object visitExpression(Stmt.Expression expression) {
         eval(expression.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Nullable
     @Override
     public Object visitAssignment(Expr.Assignment assignment) {
         var value = eval(assignment.expression);
-        var distance = locals.get(assignment);
-        if (distance != null) {
-            environment.assignAt(distance, assignment.name, value);
+        if (assignment.isInFrame()) {
+            stack[frame + assignment.slot] = value;
+        } else if (assignment.isGlobal()) {
+            assignGlobal(assignment, value);
         } else {
-            globals.assign(assignment.name, value);
+            environment.assignAt(assignment.depth, assignment.slot, value);
         }
         return value;
     }
@@ -89,56 +140,24 @@ class Interpreter implements Visitor<Object> {
     @Nullable
     @Override
     public Object visitBinary(Expr.Binary binary) {
+        if (binary.node instanceof BinaryNode.NumberNode numberNode) {
+            return numberNode.executeUnboxed(this, binary);
+        }
         var left = eval(binary.left);
         var right = eval(binary.right);
-        switch (binary.operator.type()) {
-            case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
-                } else if (left instanceof String && right instanceof String) {
-                    return left + (String) right;
-                }
-                throw new RuntimeError(binary.operator, "operands must be either two numbers or two strings");
-            case MINUS:
-                checkNumberOperands(binary.operator, left, right);
-                return (double) left - (double) right;
-            case SLASH:
-                checkNumberOperands(binary.operator, left, right);
-                return (double) left / (double) right;
-            case STAR:
-                checkNumberOperands(binary.operator, left, right);
-                return (double) left * (double) right;
-            case GREATER:
-                checkNumberOperands(binary.operator, left, right);
-                return (double) left > (double) right;
-            case GREATER_EQUAL:
-                checkNumberOperands(binary.operator, left, right);
-                return (double) left >= (double) right;
-            case LESS:
-                checkNumberOperands(binary.operator, left, right);
-                return (double) left < (double) right;
-            case LESS_EQUAL:
-                checkNumberOperands(binary.operator, left, right);
-                return (double) left <= (double) right;
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-            default:
-                return null;
-        }
+        return binary.node.execute(binary, left, right);
     }
 
     @Nullable
     @Override
     public Object visitLogical(Expr.Logical logical) {
-        var leftResult = eval(logical.left);
+        boolean left = test(logical.left);
         if (logical.operator.type() == TokenType.AND) {
-            if (!isTruthy(leftResult)) {
+            if (!left) {
                 return false;
             }
         } else {
-            if (isTruthy(leftResult)) {
+            if (left) {
                 return true;
             }
         }
@@ -148,16 +167,7 @@ class Interpreter implements Visitor<Object> {
     @Nullable
     @Override
     public Object visitUnary(Expr.Unary unary) {
-        var right = eval(unary.right);
-        switch (unary.operator.type()) {
-            case MINUS:
-                checkNumberOperand(unary.operator, right);
-                return -(double) right;
-            case BANG:
-                return !isTruthy(right);
-            default:
-                return null;
-        }
+        return unary.node.execute(unary, eval(unary.right));
     }
 
     @Nullable
@@ -169,15 +179,7 @@ class Interpreter implements Visitor<Object> {
     @Nullable
     @Override
     public Object visitLiteral(Expr.Literal literal) {
-        if (literal.value.isBoolean()) {
-            return literal.value.asBoolean();
-        } else if (literal.value.isNumber()) {
-            return literal.value.asNumber();
-        } else if (literal.value.isString()) {
-            return literal.value.asString();
-        } else {
-            return null;
-        }
+        return literal.constant;
     }
 
     @Nullable
@@ -186,57 +188,273 @@ class Interpreter implements Visitor<Object> {
         return lookupVariable(variableReference.name, variableReference);
     }
 
-    private Object lookupVariable(Token name, Expr expr) {
-        var distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name);
+    @Nullable
+    private Object lookupVariable(Token name, Expr.VariableAccess expr) {
+        if (expr.isInFrame()) {
+            return stack[frame + expr.slot];
+        }
+        if (expr.isGlobal()) {
+            return globalCell(expr, name).get(name);
         }
-        return globals.get(name);
+        return environment.getAt(expr.depth, expr.slot);
+    }
+
+    @Nullable
+    Object readGlobal(Expr.VariableReference expr) {
+        return globalCell(expr, expr.name).get(expr.name);
+    }
+
+    @Nullable
+    Object assignGlobal(Expr.Assignment assignment, @Nullable Object value) {
+        globalCell(assignment, assignment.name).assign(assignment.name, value);
+        return value;
+    }
+
+    /**
+     * Returns the cell of a global, binding the expression to it the first time it runs against these globals.
+     */
+    private Globals.Cell globalCell(Expr.VariableAccess expr, Token name) {
+        var cell = expr.global;
+        if (cell == null || cell.owner != globals) {
+            cell = globals.cell(name.symbol());
+            expr.global = cell;
+        }
+        return cell;
+    }
+
+    private void define(Token name, int slot, int environmentSlot, @Nullable Object value) {
+        if (slot < 0) {
+            globals.define(name.symbol(), value);
+        } else if (environmentSlot >= 0) {
+            environment.define(environmentSlot, value);
+        } else {
+            stack[frame + slot] = value;
+        }
+    }
+
+    /**
+     * Starts the frame of a call on top of the current one and returns the caller's frame, for {@link #popFrame}.
+     */
+    int pushFrame(int size) {
+        int caller = frame;
+        frame = top;
+        top = frame + size;
+        if (top > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(top, stack.length * 2));
+        }
+        return caller;
+    }
+
+    void popFrame(int caller) {
+        Arrays.fill(stack, frame, top, null);
+        top = frame;
+        frame = caller;
+    }
+
+    void setFrameSlot(int slot, @Nullable Object value) {
+        stack[frame + slot] = value;
     }
 
     @Nullable
     @Override
     public Object visitBlock(Stmt.Block block) {
-        executeBlock(block.statements, new Environment(environment));
-        return null;
+        // Top-level code has no call frame of a known size, so its frame grows as blocks need it.
+        if (frame + block.frameSize > top) {
+            top = frame + block.frameSize;
+            if (top > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(top, stack.length * 2));
+            }
+        }
+        if (block.slots == 0) {
+            return executeBlock(block.statements, environment);
+        }
+        return executeBlock(block.statements, new Environment(environment, block.slots));
     }
 
     @Nullable
     @Override
     public Object visitIf(Stmt.If ifStmt) {
-        var conditionResult = eval(ifStmt.condition);
-        if (isTruthy(conditionResult)) {
-            execute(ifStmt.thenBranch);
+        if (test(ifStmt.condition)) {
+            return execute(ifStmt.thenBranch);
         } else if (ifStmt.elseBranch.isPresent()) {
-            execute(ifStmt.elseBranch.get());
+            return execute(ifStmt.elseBranch.get());
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Nullable
     @Override
     public Object visitWhile(Stmt.While whileLoop) {
-        while (isTruthy(eval(whileLoop.condition))) {
-            execute(whileLoop.body);
+        var condition = whileLoop.condition;
+        // A for loop without a condition gets a literal true, which need not be evaluated on every iteration.
+        boolean always = condition instanceof Expr.Literal literal && isTruthy(literal.constant);
+        while (always || test(condition)) {
+            if (execute(whileLoop.body) == Completion.RETURN) {
+                return Completion.RETURN;
+            }
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Nullable
     @Override
     public Object visitCall(Expr.Call call) {
-        Object callee = eval(call.callee);
+        if (call.callee instanceof Expr.Get get) {
+            var instance = instance(get.name, eval(get.object));
+            var method = get.cache.method(instance, get.name);
+            if (method != null) {
+                return invokeMethod(call, method, instance);
+            }
+            return callValue(call, get.cache.get(instance, get.name));
+        }
+        return callValue(call, eval(call.callee));
+    }
+
+    @Nullable
+    private Object callValue(Expr.Call call, @Nullable Object callee) {
+        var callable = callable(call, callee);
+        var arguments = call.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return call0(call, callable);
+            case 1:
+                return call1(call, callable, eval(arguments.get(0)));
+            case 2:
+                return call2(call, callable, eval(arguments.get(0)), eval(arguments.get(1)));
+            case 3:
+                return call3(call, callable, eval(arguments.get(0)), eval(arguments.get(1)), eval(arguments.get(2)));
+            default:
+                return call(call, callable, evalArguments(call));
+        }
+    }
+
+    static LoxCallable callable(Expr.Call call, @Nullable Object callee) {
         if (!(callee instanceof LoxCallable callable)) {
             throw new RuntimeError(call.paren, "can only call functions and classes");
         }
-        var args = call.arguments.stream().map(this::eval).collect(ImmutableList.toImmutableList());
-        if (args.size() != callable.arity()) {
-            throw new RuntimeError(call.paren, String.format("wrong number of arguments in a function call, expected %d, got %d", callable.arity(), args.size()));
+        return callable;
+    }
+
+    /**
+     * Calls with arguments that have already been evaluated, after checking the arity. Compiled code calls this and
+     * the other fixed-arity variants directly.
+     */
+    @Nullable
+    Object call0(Expr.Call call, LoxCallable callable) {
+        checkArity(call, callable, 0);
+        try {
+            return callable.call0(this);
+        } catch (Builtin.NativeError error) {
+            throw new RuntimeError(call.paren, String.valueOf(error.getMessage()));
+        }
+    }
+
+    @Nullable
+    Object call1(Expr.Call call, LoxCallable callable, @Nullable Object first) {
+        checkArity(call, callable, 1);
+        try {
+            return callable.call1(this, first);
+        } catch (Builtin.NativeError error) {
+            throw new RuntimeError(call.paren, String.valueOf(error.getMessage()));
+        }
+    }
+
+    @Nullable
+    Object call2(Expr.Call call, LoxCallable callable, @Nullable Object first, @Nullable Object second) {
+        checkArity(call, callable, 2);
+        try {
+            return callable.call2(this, first, second);
+        } catch (Builtin.NativeError error) {
+            throw new RuntimeError(call.paren, String.valueOf(error.getMessage()));
+        }
+    }
+
+    @Nullable
+    Object call3(Expr.Call call, LoxCallable callable, @Nullable Object first, @Nullable Object second, @Nullable Object third) {
+        checkArity(call, callable, 3);
+        try {
+            return callable.call3(this, first, second, third);
+        } catch (Builtin.NativeError error) {
+            throw new RuntimeError(call.paren, String.valueOf(error.getMessage()));
+        }
+    }
+
+    @Nullable
+    Object call(Expr.Call call, LoxCallable callable, Object[] arguments) {
+        checkArity(call, callable, arguments.length);
+        try {
+            return callable.call(this, arguments);
+        } catch (Builtin.NativeError error) {
+            throw new RuntimeError(call.paren, String.valueOf(error.getMessage()));
+        }
+    }
+
+    /**
+     * Calls a method found on an instance without binding it first.
+     */
+    @Nullable
+    private Object invokeMethod(Expr.Call call, LoxFunction method, LoxInstance instance) {
+        var arguments = call.arguments;
+        switch (arguments.size()) {
+            case 0:
+                checkArity(call, method, 0);
+                return method.invoke0(this, instance);
+            case 1: {
+                var first = eval(arguments.get(0));
+                checkArity(call, method, 1);
+                return method.invoke1(this, instance, first);
+            }
+            case 2: {
+                var first = eval(arguments.get(0));
+                var second = eval(arguments.get(1));
+                checkArity(call, method, 2);
+                return method.invoke2(this, instance, first, second);
+            }
+            case 3: {
+                var first = eval(arguments.get(0));
+                var second = eval(arguments.get(1));
+                var third = eval(arguments.get(2));
+                checkArity(call, method, 3);
+                return method.invoke3(this, instance, first, second, third);
+            }
+            default: {
+                var args = evalArguments(call);
+                checkArity(call, method, args.length);
+                return method.invoke(this, instance, args);
+            }
+        }
+    }
+
+    private Object[] evalArguments(Expr.Call call) {
+        var args = new Object[call.arguments.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = eval(call.arguments.get(i));
         }
-        return callable.call(this, args);
+        return args;
     }
 
-    private boolean isTruthy(@Nullable Object value) {
+    private static void checkArity(Expr.Call call, LoxCallable callable, int count) {
+        if (count != callable.arity()) {
+            throw new RuntimeError(call.paren, String.format("wrong number of arguments in a function call, expected %d, got %d", callable.arity(), count));
+        }
+    }
+
+    /**
+     * Evaluates a condition. Comparisons specialized for numbers are tested on primitive doubles, without boxing their
+     * result, and other conditions the {@link TypeInferrer} found to be booleans are used as they are rather than
+     * tested for truthiness.
+     */
+    private boolean test(Expr condition) {
+        if (condition instanceof Expr.Binary binary && binary.node instanceof BinaryNode.ComparisonNode comparison) {
+            return comparison.executeBoolean(this, binary);
+        }
+        if (condition.type == Expr.Type.BOOLEAN) {
+            return (Boolean) Objects.requireNonNull(eval(condition));
+        }
+        return isTruthy(eval(condition));
+    }
+
+    static boolean isTruthy(@Nullable Object value) {
         if (value == null) {
             return false;
         }
@@ -249,18 +467,15 @@ class Interpreter implements Visitor<Object> {
     @Nullable
     @Override
     public Object visitFunction(Stmt.Function fun) {
-        environment.define(fun.name.lexeme(), new LoxFunction(fun, environment, false));
-        return null;
+        define(fun.name, fun.slot, fun.environmentSlot, new LoxFunction(fun, environment, false));
+        return Completion.NORMAL;
     }
 
     @Nullable
     @Override
     public Object visitReturn(Stmt.Return ret) {
-        if (ret.value.isPresent()) {
-            var value = eval(ret.value.get());
-            throw new Return(value);
-        }
-        throw new Return(null);
+        returnValue = ret.value.isPresent() ? eval(ret.value.get()) : null;
+        return Completion.RETURN;
     }
 
     @Nullable
@@ -275,49 +490,49 @@ class Interpreter implements Visitor<Object> {
             superclass = Optional.of((LoxClass) superclassVal);
         }
 
-        environment.define(stmt.name.lexeme(), null);
+        define(stmt.name, stmt.slot, stmt.environmentSlot, null);
 
         if (stmt.superclass.isPresent()) {
-            environment = new Environment(environment);
-            environment.define("super", superclass.get());
+            environment = new Environment(environment, 1);
+            environment.define(0, superclass.get());
         }
 
-        var methodsBuilder = ImmutableMap.<String, LoxFunction>builder();
+        var methodsBuilder = ImmutableMap.<Symbol, LoxFunction>builder();
         for (var method : stmt.methods) {
-            var function = new LoxFunction(method, environment, method.name.lexeme().equals("init"));
-            methodsBuilder.put(method.name.lexeme(), function);
+            var function = new LoxFunction(method, environment, method.name.symbol() == Symbol.INIT);
+            methodsBuilder.put(method.name.symbol(), function);
         }
 
-        var klass = new LoxClass(stmt.name.lexeme(), superclass, methodsBuilder.build());
+        var klass = new LoxClass(stmt.name.lexeme(), superclass, methodsBuilder.build(), stmt.rootShape);
 
         if (stmt.superclass.isPresent()) {
-            environment = environment.enclosing.get();
+            environment = Objects.requireNonNull(environment.enclosing);
         }
 
-        environment.assign(stmt.name, klass);
-        return null;
+        define(stmt.name, stmt.slot, stmt.environmentSlot, klass);
+        return Completion.NORMAL;
     }
 
     @Nullable
     @Override
     public Object visitGet(Expr.Get expr) {
-        var object = eval(expr.object);
-        if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
-        }
-        throw new RuntimeError(expr.name, "only instances have properties");
+        return expr.cache.get(instance(expr.name, eval(expr.object)), expr.name);
     }
 
     @Nullable
     @Override
     public Object visitSet(Expr.Set expr) {
-        var object = eval(expr.object);
-        if (object instanceof LoxInstance) {
-            var value = eval(expr.value);
-            ((LoxInstance) object).set(expr.name, value);
-            return value;
+        var instance = instance(expr.name, eval(expr.object));
+        var value = eval(expr.value);
+        expr.cache.set(instance, expr.name, value);
+        return value;
+    }
+
+    static LoxInstance instance(Token name, @Nullable Object object) {
+        if (object instanceof LoxInstance instance) {
+            return instance;
         }
-        throw new RuntimeError(expr.name, "only instances have properties");
+        throw new RuntimeError(name, "only instances have properties");
     }
 
     @Nullable
@@ -329,57 +544,53 @@ class Interpreter implements Visitor<Object> {
     @Nullable
     @Override
     public Object visitSuper(Expr.Super expr) {
-        Integer distance = locals.get(expr);
-        if (distance == null) {
+        if (expr.isGlobal()) {
             throw new RuntimeError(expr.keyword, "invalid distance");
         }
-        var superclass = (LoxClass) environment.getAt(distance, new Token(TokenType.IDENTIFIER, "super", Optional.empty(), 0));
-        var object = (LoxInstance) environment.getAt(distance - 1, new Token(TokenType.IDENTIFIER, "this", Optional.empty(), 0));
-        var method = superclass.findMethod(expr.method.lexeme());
-        if (method.isEmpty()) {
+        var superclass = (LoxClass) Objects.requireNonNull(environment.getAt(expr.depth, expr.slot));
+        var object = (LoxInstance) Objects.requireNonNull(lookupVariable(expr.receiver.keyword, expr.receiver));
+        var method = superclass.findMethod(expr.method.symbol());
+        if (method == null) {
             throw new RuntimeError(expr.method, "undefined property '" + expr.method.lexeme() + "'");
         }
-        return method.get().bind(object);
+        return method.bind(object);
     }
 
-    private boolean isEqual(@Nullable Object left, @Nullable Object right) {
+    static boolean isEqual(@Nullable Object left, @Nullable Object right) {
         if (left == null && right == null) {
             return true;
         }
         if (left == null) {
             return false;
         }
-        return left.equals(right);
-    }
-
-    private void checkNumberOperands(Token operator, @Nullable Object left, @Nullable Object right) {
-        if (!(left instanceof Double)) {
-            throw new RuntimeError(operator, "left operand must be a number");
-        }
-        if (!(right instanceof Double)) {
-            throw new RuntimeError(operator, "right operand must be a number");
-        }
-    }
-
-    private void checkNumberOperand(Token operator, @Nullable Object operand) {
-        if (!(operand instanceof Double)) {
-            throw new RuntimeError(operator, "operand must be a number");
+        if (left instanceof CharSequence l && right instanceof CharSequence r) {
+            return l.length() == r.length() && l.toString().equals(r.toString());
         }
+        return left.equals(right);
     }
 
-    void executeBlock(ImmutableList<Stmt> statements, Environment environment) {
+    Completion executeBlock(ImmutableList<Stmt> statements, Environment environment) {
         var previousEnvironment = this.environment;
         try {
             this.environment = environment;
             for (var statement : statements) {
-                execute(statement);
+                if (execute(statement) == Completion.RETURN) {
+                    return Completion.RETURN;
+                }
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previousEnvironment;
         }
     }
 
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    /**
+     * Hands over the value of the {@code return} statement that completed the last function body.
+     */
+    @Nullable
+    Object takeReturnValue() {
+        var value = returnValue;
+        returnValue = null;
+        return value;
     }
 }
@@ -0,0 +1,96 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.SwitchPoint;
+
+/**
+ * Tiered compilation of one function declaration, shared by all its closures and all threads running it. A function
+ * is interpreted at first, while the interpreter counts its calls and records which parameters have only been passed
+ * numbers. After {@link #THRESHOLD} calls it is compiled to JVM bytecode by the {@link JitCompiler}, specialized for
+ * those parameters.
+ *
+ * <p>A call whose arguments do not match the types the code was compiled for deoptimizes it: the call and the ones
+ * after it are interpreted again, the parameter that failed the check is recorded as not always a number, and the
+ * function is compiled again once it is hot. Each deoptimization widens a parameter, so a function deoptimizes at most
+ * once per parameter. Functions the compiler does not handle stay interpreted.
+ *
+ * <p>The counters are updated without synchronization; a lost update only delays compilation a little.
+ */
+final class Jit {
+    static final int THRESHOLD = 1000;
+
+    private final Stmt.Function declaration;
+    private int calls = 0;
+    /**
+     * Bit {@code i} is set while every argument passed for parameter {@code i} has been a number.
+     */
+    private int numberParameters = -1;
+    @Nullable
+    private volatile CompiledFunction code = null;
+    private volatile boolean unsupported = false;
+    private volatile SwitchPoint switchPoint = new SwitchPoint();
+
+    Jit(Stmt.Function declaration) {
+        this.declaration = declaration;
+    }
+
+    /**
+     * Returns the compiled code of the function, compiling it if this call makes it hot, or null if it is to be
+     * interpreted.
+     */
+    @Nullable
+    CompiledFunction code() {
+        var code = this.code;
+        if (code != null || unsupported || ++calls < THRESHOLD) {
+            return code;
+        }
+        return compile();
+    }
+
+    /**
+     * Records the argument an interpreted call passed for a parameter.
+     */
+    void observe(int parameter, @Nullable Object argument) {
+        if (!(argument instanceof Double) && parameter < Integer.SIZE) {
+            numberParameters &= ~(1 << parameter);
+        }
+    }
+
+    /**
+     * Returns the switch point that is invalidated the next time the function is compiled or deoptimized, for call
+     * sites linked to its current code.
+     */
+    SwitchPoint switchPoint() {
+        return switchPoint;
+    }
+
+    @Nullable
+    private synchronized CompiledFunction compile() {
+        if (code == null && !unsupported) {
+            try {
+                code = JitCompiler.compile(declaration, numberParameters, this);
+                invalidateCallSites();
+            } catch (JitCompiler.Unsupported e) {
+                unsupported = true;
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Discards compiled code whose argument checks failed, unless it was already replaced.
+     */
+    synchronized void deoptimize(CompiledFunction stale) {
+        if (code == stale) {
+            code = null;
+            calls = 0;
+            invalidateCallSites();
+        }
+    }
+
+    private void invalidateCallSites() {
+        var invalidated = switchPoint;
+        switchPoint = new SwitchPoint();
+        SwitchPoint.invalidateAll(new SwitchPoint[]{invalidated});
+    }
+}
@@ -0,0 +1,785 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+
+import static com.istrukov.jlox.ClassWriter.*;
+
+/**
+ * Compiles the body of one function to a {@link CompiledFunction} subclass, for the {@link Jit}.
+ *
+ * <p>Every frame slot of the function becomes a JVM local with a static type: a primitive double, a primitive
+ * boolean, or any Lox value. Parameters are numbers if every call so far passed a number, which the compiled code
+ * checks on entry; other locals take the type of everything assigned to them. The types are found by writing the
+ * code repeatedly, widening the type of each slot to what was stored into it, until nothing changes. Operations on
+ * operands of known types run as plain JVM instructions, and everything else goes through the same code the
+ * interpreter uses, so compiled functions behave exactly like interpreted ones.
+ *
+ * <p>Only functions that keep all their locals in the frame are compiled. Methods, closures over enclosing locals,
+ * nested functions and classes are left to the interpreter: the compiler throws {@link Unsupported} for them.
+ */
+final class JitCompiler implements Visitor<JitCompiler.Type> {
+    /**
+     * Thrown when a function uses something the compiler does not handle, or its code would not fit in a class file,
+     * so that it stays interpreted. Any other exception from the compiler is a bug in it.
+     */
+    @SuppressWarnings("serial")
+    static final class Unsupported extends RuntimeException {
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final String PACKAGE = "com/istrukov/jlox/";
+    private static final String COMPILED = PACKAGE + "CompiledFunction";
+    private static final String INTERPRETER = PACKAGE + "Interpreter";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String CALL = "L" + PACKAGE + "Expr$Call;L" + PACKAGE + "LoxCallable;";
+    /**
+     * String literals longer than this are kept with the other constants rather than in the constant pool, which
+     * limits the size of strings.
+     */
+    private static final int MAX_STRING_LITERAL = 8192;
+
+    enum Type {
+        NUMBER,
+        BOOLEAN,
+        VALUE
+    }
+
+    private final Stmt.Function function;
+    /**
+     * Type of each frame slot in the pass being written, or null if no earlier pass stored anything into it.
+     */
+    private final Type[] types;
+    /**
+     * Types stored into each frame slot by the pass being written.
+     */
+    private Type[] stored;
+    private int[] locals;
+    private final String className;
+    /**
+     * Values the code refers to, which the class keeps in static final fields, and the types of those fields.
+     */
+    private final List<Object> constants = new ArrayList<>();
+    private final List<String> constantTypes = new ArrayList<>();
+    private final IdentityHashMap<Object, Integer> constantIndexes = new IdentityHashMap<>();
+    private ClassWriter writer;
+    private ClassWriter.Code code;
+
+    private JitCompiler(Stmt.Function function, int numberParameters) {
+        this.function = function;
+        this.types = new Type[function.frameSize];
+        this.stored = new Type[function.frameSize];
+        this.locals = new int[function.frameSize];
+        for (int i = 0; i < function.params.size(); i++) {
+            types[i] = i < Integer.SIZE && (numberParameters >>> i & 1) != 0 ? Type.NUMBER : Type.VALUE;
+        }
+        this.className = PACKAGE + "Jit$" + function.name.lexeme();
+        this.writer = new ClassWriter(className, COMPILED);
+        this.code = write();
+        while (widen()) {
+            this.writer = new ClassWriter(className, COMPILED);
+            this.code = write();
+        }
+    }
+
+    /**
+     * Compiles a function and loads the code.
+     *
+     * @param numberParameters bit {@code i} is set if parameter {@code i} has only been passed numbers
+     * @throws Unsupported if the function uses something the compiler does not handle
+     */
+    static CompiledFunction compile(Stmt.Function function, int numberParameters, Jit jit) {
+        if (function.slots > 0) {
+            throw new Unsupported("captured locals");
+        }
+        var compiler = new JitCompiler(function, numberParameters);
+        try {
+            var bytes = compiler.writer.toByteArray();
+            var compiled = LOOKUP.defineHiddenClassWithClassData(bytes, compiler.constants.toArray(), true).lookupClass();
+            return compiled.asSubclass(CompiledFunction.class).getDeclaredConstructor(Jit.class).newInstance(jit);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot load compiled " + function.name.lexeme(), e);
+        }
+    }
+
+    /**
+     * Widens the type of every slot to include what the last pass stored into it, giving slots that were never
+     * stored into the type of any value once nothing else changes. Returns whether any type changed.
+     */
+    private boolean widen() {
+        boolean changed = false;
+        for (int i = 0; i < types.length; i++) {
+            var widened = join(types[i], stored[i]);
+            if (widened != types[i]) {
+                types[i] = widened;
+                changed = true;
+            }
+        }
+        if (!changed) {
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == null) {
+                    types[i] = Type.VALUE;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    @Nullable
+    private static Type join(@Nullable Type left, @Nullable Type right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null || left == right) {
+            return left;
+        }
+        return Type.VALUE;
+    }
+
+    private Type type(int slot) {
+        return types[slot] == null ? Type.NUMBER : types[slot];
+    }
+
+    /**
+     * Writes the class for the current slot types, returning the code of the entry point.
+     */
+    private ClassWriter.Code write() {
+        constants.clear();
+        constantTypes.clear();
+        constantIndexes.clear();
+        var constructorDescriptor = "(L" + PACKAGE + "Jit;)V";
+        var constructor = writer.method(0x0001, "<init>", constructorDescriptor);
+        constructor.local(ALOAD, 0, 1);
+        constructor.local(ALOAD, 1, 1);
+        constructor.invoke(INVOKESPECIAL, COMPILED, "<init>", constructorDescriptor);
+        constructor.op(RETURN, 0);
+
+        int arity = function.params.size();
+        var descriptor = new StringBuilder("(L" + INTERPRETER + ";");
+        if (arity > 3) {
+            descriptor.append('[').append(OBJECT);
+        } else {
+            descriptor.append(OBJECT.repeat(arity));
+        }
+        descriptor.append(')').append(OBJECT);
+        var code = writer.method(0, arity > 3 ? "call" : "call" + arity, descriptor.toString());
+        this.code = code;
+        locals = new int[function.frameSize];
+        for (int slot = 0; slot < locals.length; slot++) {
+            locals[slot] = code.newLocal(type(slot) == Type.NUMBER ? 2 : 1);
+        }
+
+        var deoptimize = new ClassWriter.Label();
+        boolean guarded = false;
+        for (int slot = 0; slot < locals.length; slot++) {
+            var type = type(slot);
+            if (slot >= arity) {
+                if (type == Type.NUMBER) {
+                    code.pushDouble(0);
+                } else if (type == Type.BOOLEAN) {
+                    code.pushInt(0);
+                } else {
+                    code.op(ACONST_NULL, 1);
+                }
+            } else if (type == Type.NUMBER) {
+                argument(slot);
+                code.type(INSTANCEOF, "java/lang/Double");
+                code.jump(IFEQ, deoptimize);
+                guarded = true;
+                argument(slot);
+                code.type(CHECKCAST, "java/lang/Double");
+                code.invoke(INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D");
+            } else {
+                argument(slot);
+            }
+            store(slot, type);
+        }
+        stored = new Type[function.frameSize];
+        for (var stmt : function.body) {
+            stmt.accept(this);
+        }
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        if (guarded) {
+            code.mark(deoptimize);
+            code.local(ALOAD, 0, 1);
+            code.invoke(INVOKEVIRTUAL, COMPILED, "deoptimize", "()" + OBJECT);
+            code.op(ARETURN, -1);
+        }
+        writeConstants();
+        return code;
+    }
+
+    /**
+     * Declares a static final field for each constant and a class initializer that sets them from the class data.
+     */
+    private void writeConstants() {
+        var initializer = writer.method(0x0008, "<clinit>", "()V");
+        initializer.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;");
+        initializer.pushString("_");
+        initializer.pushClass("[" + OBJECT);
+        initializer.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "classData",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)" + OBJECT);
+        initializer.type(CHECKCAST, "[" + OBJECT);
+        int data = initializer.newLocal(1);
+        initializer.local(ASTORE, data, -1);
+        for (int i = 0; i < constants.size(); i++) {
+            var descriptor = "L" + constantTypes.get(i) + ";";
+            writer.field(0x001A, "c" + i, descriptor);
+            initializer.local(ALOAD, data, 1);
+            initializer.pushInt(i);
+            initializer.op(AALOAD, -1);
+            initializer.type(CHECKCAST, constantTypes.get(i));
+            initializer.field(PUTSTATIC, className, "c" + i, descriptor);
+        }
+        initializer.op(RETURN, 0);
+    }
+
+    private void argument(int index) {
+        if (function.params.size() > 3) {
+            code.local(ALOAD, 2, 1);
+            code.pushInt(index);
+            code.op(AALOAD, -1);
+        } else {
+            code.local(ALOAD, 2 + index, 1);
+        }
+    }
+
+    private void constant(Object value, String type) {
+        var index = constantIndexes.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantTypes.add(type);
+            constantIndexes.put(value, index);
+        }
+        code.field(GETSTATIC, className, "c" + index, "L" + constantTypes.get(index) + ";");
+    }
+
+    private void interpreter() {
+        code.local(ALOAD, 1, 1);
+    }
+
+    private void load(int slot) {
+        switch (type(slot)) {
+            case NUMBER:
+                code.local(DLOAD, locals[slot], 2);
+                break;
+            case BOOLEAN:
+                code.local(ILOAD, locals[slot], 1);
+                break;
+            default:
+                code.local(ALOAD, locals[slot], 1);
+        }
+    }
+
+    /**
+     * Stores the value on top of the stack into a frame slot, converting it to the type of the slot.
+     */
+    private void store(int slot, Type type) {
+        stored[slot] = join(stored[slot], type);
+        var target = type(slot);
+        convert(type, target);
+        switch (target) {
+            case NUMBER:
+                code.local(DSTORE, locals[slot], -2);
+                break;
+            case BOOLEAN:
+                code.local(ISTORE, locals[slot], -1);
+                break;
+            default:
+                code.local(ASTORE, locals[slot], -1);
+        }
+    }
+
+    private void convert(Type from, Type to) {
+        if (from == to) {
+            return;
+        }
+        if (to == Type.VALUE) {
+            if (from == Type.NUMBER) {
+                code.invoke(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+            } else {
+                code.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+            }
+            return;
+        }
+        // Only in a pass whose slot types are still too narrow; its code is thrown away.
+        pop(from);
+        if (to == Type.NUMBER) {
+            code.pushDouble(0);
+        } else {
+            code.pushInt(0);
+        }
+    }
+
+    private void pop(Type type) {
+        code.op(type == Type.NUMBER ? POP2 : POP, type == Type.NUMBER ? -2 : -1);
+    }
+
+    private Type expression(Expr expr) {
+        return Objects.requireNonNull(expr.accept(this));
+    }
+
+    /**
+     * Pushes the value of an expression as a Lox value.
+     */
+    private void value(Expr expr) {
+        convert(expression(expr), Type.VALUE);
+    }
+
+    /**
+     * Pushes whether the value of an expression is truthy, as a JVM boolean.
+     */
+    private void truth(Expr expr) {
+        var type = expression(expr);
+        if (type == Type.NUMBER) {
+            code.op(POP2, -2);
+            code.pushInt(1);
+        } else if (type == Type.VALUE) {
+            code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(" + OBJECT + ")Z");
+        }
+    }
+
+    /**
+     * Jumps to the target if an expression is falsy, comparing numbers and combining conditions without producing
+     * their boolean values first.
+     */
+    private void jumpIfFalse(Expr expr, ClassWriter.Label target) {
+        if (expr instanceof Expr.Grouping grouping) {
+            jumpIfFalse(grouping.expression, target);
+        } else if (expr instanceof Expr.Literal literal) {
+            if (!Interpreter.isTruthy(literal.constant)) {
+                code.jump(GOTO, target);
+            }
+        } else if (expr instanceof Expr.Binary binary && isComparison(binary.operator.type())
+                && typeOf(binary.left) == Type.NUMBER && typeOf(binary.right) == Type.NUMBER) {
+            expression(binary.left);
+            expression(binary.right);
+            switch (binary.operator.type()) {
+                case LESS:
+                    code.op(DCMPG, -3);
+                    code.jump(IFGE, target);
+                    break;
+                case LESS_EQUAL:
+                    code.op(DCMPG, -3);
+                    code.jump(IFGT, target);
+                    break;
+                case GREATER:
+                    code.op(DCMPL, -3);
+                    code.jump(IFLE, target);
+                    break;
+                default:
+                    code.op(DCMPL, -3);
+                    code.jump(IFLT, target);
+            }
+        } else if (expr instanceof Expr.Logical logical && logical.operator.type() == TokenType.AND) {
+            jumpIfFalse(logical.left, target);
+            jumpIfFalse(logical.right, target);
+        } else if (expr instanceof Expr.Logical logical) {
+            var skip = new ClassWriter.Label();
+            truth(logical.left);
+            code.jump(IFNE, skip);
+            jumpIfFalse(logical.right, target);
+            code.mark(skip);
+        } else if (expr instanceof Expr.Unary unary && unary.operator.type() == TokenType.BANG) {
+            truth(unary.right);
+            code.jump(IFNE, target);
+        } else {
+            truth(expr);
+            code.jump(IFEQ, target);
+        }
+    }
+
+    private static boolean isComparison(TokenType operator) {
+        switch (operator) {
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the type of what the code for an expression pushes, without writing it.
+     */
+    private Type typeOf(Expr expr) {
+        if (expr instanceof Expr.Literal literal) {
+            if (literal.constant instanceof Double) {
+                return Type.NUMBER;
+            }
+            return literal.constant instanceof Boolean ? Type.BOOLEAN : Type.VALUE;
+        }
+        if (expr instanceof Expr.Grouping grouping) {
+            return typeOf(grouping.expression);
+        }
+        if (expr instanceof Expr.VariableReference reference) {
+            return reference.isInFrame() ? type(reference.slot) : Type.VALUE;
+        }
+        if (expr instanceof Expr.Assignment assignment) {
+            return assignment.isInFrame() ? typeOf(assignment.expression) : Type.VALUE;
+        }
+        if (expr instanceof Expr.Binary binary) {
+            switch (binary.operator.type()) {
+                case PLUS:
+                    return typeOf(binary.left) == Type.NUMBER && typeOf(binary.right) == Type.NUMBER ? Type.NUMBER : Type.VALUE;
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return Type.NUMBER;
+                default:
+                    return Type.BOOLEAN;
+            }
+        }
+        if (expr instanceof Expr.Unary unary) {
+            return unary.operator.type() == TokenType.MINUS ? Type.NUMBER : Type.BOOLEAN;
+        }
+        if (expr instanceof Expr.Logical logical) {
+            return typeOf(logical.right) == Type.BOOLEAN ? Type.BOOLEAN : Type.VALUE;
+        }
+        return Type.VALUE;
+    }
+
+    @Override
+    public Type visitBinary(Expr.Binary binary) {
+        var operator = binary.operator.type();
+        boolean numbers = typeOf(binary.left) == Type.NUMBER && typeOf(binary.right) == Type.NUMBER;
+        switch (operator) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+                if (numbers) {
+                    expression(binary.left);
+                    expression(binary.right);
+                    code.op(operator == TokenType.PLUS ? DADD : operator == TokenType.MINUS ? DSUB : operator == TokenType.STAR ? DMUL : DDIV, -2);
+                    return Type.NUMBER;
+                }
+                constant(binary, PACKAGE + "Expr$Binary");
+                value(binary.left);
+                value(binary.right);
+                if (operator == TokenType.PLUS) {
+                    code.invoke(INVOKESTATIC, COMPILED, "binary", "(L" + PACKAGE + "Expr$Binary;" + OBJECT + OBJECT + ")" + OBJECT);
+                    return Type.VALUE;
+                }
+                code.invoke(INVOKESTATIC, COMPILED, "arithmetic", "(L" + PACKAGE + "Expr$Binary;" + OBJECT + OBJECT + ")D");
+                return Type.NUMBER;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                if (numbers) {
+                    expression(binary.left);
+                    expression(binary.right);
+                    code.invoke(INVOKESTATIC, COMPILED, "equal", "(DD)Z");
+                } else {
+                    value(binary.left);
+                    value(binary.right);
+                    code.invoke(INVOKESTATIC, INTERPRETER, "isEqual", "(" + OBJECT + OBJECT + ")Z");
+                }
+                if (operator == TokenType.BANG_EQUAL) {
+                    code.pushInt(1);
+                    code.op(IXOR, -1);
+                }
+                return Type.BOOLEAN;
+            default:
+                if (numbers) {
+                    var otherwise = new ClassWriter.Label();
+                    var end = new ClassWriter.Label();
+                    jumpIfFalse(binary, otherwise);
+                    code.pushInt(1);
+                    code.jump(GOTO, end);
+                    code.mark(otherwise);
+                    code.pushInt(0);
+                    code.mark(end);
+                    return Type.BOOLEAN;
+                }
+                constant(binary, PACKAGE + "Expr$Binary");
+                value(binary.left);
+                value(binary.right);
+                code.invoke(INVOKESTATIC, COMPILED, "compare", "(L" + PACKAGE + "Expr$Binary;" + OBJECT + OBJECT + ")Z");
+                return Type.BOOLEAN;
+        }
+    }
+
+    @Override
+    public Type visitUnary(Expr.Unary unary) {
+        if (unary.operator.type() == TokenType.BANG) {
+            truth(unary.right);
+            code.pushInt(1);
+            code.op(IXOR, -1);
+            return Type.BOOLEAN;
+        }
+        if (typeOf(unary.right) == Type.NUMBER) {
+            expression(unary.right);
+            code.op(DNEG, 0);
+            return Type.NUMBER;
+        }
+        constant(unary, PACKAGE + "Expr$Unary");
+        value(unary.right);
+        code.invoke(INVOKESTATIC, COMPILED, "negate", "(L" + PACKAGE + "Expr$Unary;" + OBJECT + ")D");
+        return Type.NUMBER;
+    }
+
+    @Override
+    public Type visitGrouping(Expr.Grouping grouping) {
+        return expression(grouping.expression);
+    }
+
+    @Override
+    public Type visitLiteral(Expr.Literal literal) {
+        var constant = literal.constant;
+        if (constant instanceof Double number) {
+            code.pushDouble(number);
+            return Type.NUMBER;
+        }
+        if (constant instanceof Boolean bool) {
+            code.pushInt(bool ? 1 : 0);
+            return Type.BOOLEAN;
+        }
+        if (constant instanceof String string && string.length() <= MAX_STRING_LITERAL) {
+            code.pushString(string);
+        } else if (constant != null) {
+            constant(constant, "java/lang/Object");
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        return Type.VALUE;
+    }
+
+    @Nullable
+    @Override
+    public Type visitExpression(Stmt.Expression expression) {
+        if (expression.expression instanceof Expr.Assignment assignment && assignment.isInFrame()) {
+            store(assignment.slot, expression(assignment.expression));
+        } else {
+            pop(expression(expression.expression));
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Type visitPrint(Stmt.Print print) {
+        interpreter();
+        value(print.expression);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "print", "(" + OBJECT + ")V");
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Type visitVar(Stmt.VariableDeclaration variableDeclaration) {
+        if (variableDeclaration.slot < 0 || variableDeclaration.environmentSlot >= 0) {
+            throw new Unsupported("captured local");
+        }
+        var initializer = variableDeclaration.initializer;
+        if (initializer.isPresent()) {
+            store(variableDeclaration.slot, expression(initializer.get()));
+        } else {
+            code.op(ACONST_NULL, 1);
+            store(variableDeclaration.slot, Type.VALUE);
+        }
+        return null;
+    }
+
+    @Override
+    public Type visitVariableReference(Expr.VariableReference variableReference) {
+        if (variableReference.isInFrame()) {
+            load(variableReference.slot);
+            return type(variableReference.slot);
+        }
+        if (!variableReference.isGlobal()) {
+            throw new Unsupported("closure");
+        }
+        interpreter();
+        constant(variableReference, PACKAGE + "Expr$VariableReference");
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "readGlobal", "(L" + PACKAGE + "Expr$VariableReference;)" + OBJECT);
+        return Type.VALUE;
+    }
+
+    @Override
+    public Type visitAssignment(Expr.Assignment assignment) {
+        if (assignment.isInFrame()) {
+            var type = expression(assignment.expression);
+            code.op(type == Type.NUMBER ? DUP2 : DUP, type == Type.NUMBER ? 2 : 1);
+            store(assignment.slot, type);
+            return type;
+        }
+        if (!assignment.isGlobal()) {
+            throw new Unsupported("closure");
+        }
+        interpreter();
+        constant(assignment, PACKAGE + "Expr$Assignment");
+        value(assignment.expression);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "assignGlobal", "(L" + PACKAGE + "Expr$Assignment;" + OBJECT + ")" + OBJECT);
+        return Type.VALUE;
+    }
+
+    @Nullable
+    @Override
+    public Type visitBlock(Stmt.Block block) {
+        if (block.slots > 0) {
+            throw new Unsupported("captured locals");
+        }
+        for (var stmt : block.statements) {
+            stmt.accept(this);
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Type visitIf(Stmt.If anIf) {
+        var otherwise = new ClassWriter.Label();
+        jumpIfFalse(anIf.condition, otherwise);
+        anIf.thenBranch.accept(this);
+        if (anIf.elseBranch.isPresent()) {
+            var end = new ClassWriter.Label();
+            code.jump(GOTO, end);
+            code.mark(otherwise);
+            anIf.elseBranch.get().accept(this);
+            code.mark(end);
+        } else {
+            code.mark(otherwise);
+        }
+        return null;
+    }
+
+    @Override
+    public Type visitLogical(Expr.Logical logical) {
+        var type = typeOf(logical);
+        boolean and = logical.operator.type() == TokenType.AND;
+        var shortCircuit = new ClassWriter.Label();
+        var end = new ClassWriter.Label();
+        truth(logical.left);
+        code.jump(and ? IFEQ : IFNE, shortCircuit);
+        convert(expression(logical.right), type);
+        code.jump(GOTO, end);
+        code.mark(shortCircuit);
+        if (type == Type.BOOLEAN) {
+            code.pushInt(and ? 0 : 1);
+        } else {
+            code.field(GETSTATIC, "java/lang/Boolean", and ? "FALSE" : "TRUE", "Ljava/lang/Boolean;");
+        }
+        code.mark(end);
+        return type;
+    }
+
+    @Nullable
+    @Override
+    public Type visitWhile(Stmt.While aWhile) {
+        var start = new ClassWriter.Label();
+        var end = new ClassWriter.Label();
+        code.mark(start);
+        jumpIfFalse(aWhile.condition, end);
+        aWhile.body.accept(this);
+        code.jump(GOTO, start);
+        code.mark(end);
+        return null;
+    }
+
+    /**
+     * Writes a call through a {@link LoxCallSite}, or through the interpreter if it has more arguments than call
+     * sites take.
+     */
+    @Override
+    public Type visitCall(Expr.Call call) {
+        var arguments = call.arguments;
+        if (arguments.size() <= 3) {
+            var site = call.site;
+            if (site == null) {
+                site = new LoxCallSite(call);
+                call.site = site;
+            }
+            constant(site.dynamicInvoker(), "java/lang/invoke/MethodHandle");
+        }
+        interpreter();
+        if (arguments.size() > 3) {
+            constant(call, PACKAGE + "Expr$Call");
+        }
+        constant(call, PACKAGE + "Expr$Call");
+        value(call.callee);
+        code.invoke(INVOKESTATIC, INTERPRETER, "callable", "(L" + PACKAGE + "Expr$Call;" + OBJECT + ")L" + PACKAGE + "LoxCallable;");
+        if (arguments.size() <= 3) {
+            for (var argument : arguments) {
+                value(argument);
+            }
+            var descriptor = LoxCallSite.type(arguments.size()).toMethodDescriptorString();
+            code.invoke(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", descriptor);
+            return Type.VALUE;
+        }
+        code.pushInt(arguments.size());
+        code.type(ANEWARRAY, "java/lang/Object");
+        for (int i = 0; i < arguments.size(); i++) {
+            code.op(DUP, 1);
+            code.pushInt(i);
+            value(arguments.get(i));
+            code.op(AASTORE, -3);
+        }
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "call", "(" + CALL + "[" + OBJECT + ")" + OBJECT);
+        return Type.VALUE;
+    }
+
+    @Nullable
+    @Override
+    public Type visitFunction(Stmt.Function function) {
+        throw new Unsupported("nested function");
+    }
+
+    @Nullable
+    @Override
+    public Type visitReturn(Stmt.Return aReturn) {
+        if (aReturn.value.isPresent()) {
+            value(aReturn.value.get());
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Type visitClass(Stmt.Class aClass) {
+        throw new Unsupported("class");
+    }
+
+    @Override
+    public Type visitGet(Expr.Get get) {
+        constant(get, PACKAGE + "Expr$Get");
+        value(get.object);
+        code.invoke(INVOKESTATIC, COMPILED, "get", "(L" + PACKAGE + "Expr$Get;" + OBJECT + ")" + OBJECT);
+        return Type.VALUE;
+    }
+
+    @Override
+    public Type visitSet(Expr.Set set) {
+        constant(set, PACKAGE + "Expr$Set");
+        constant(set, PACKAGE + "Expr$Set");
+        value(set.object);
+        code.invoke(INVOKESTATIC, COMPILED, "instance", "(L" + PACKAGE + "Expr$Set;" + OBJECT + ")L" + PACKAGE + "LoxInstance;");
+        value(set.value);
+        code.invoke(INVOKESTATIC, COMPILED, "set", "(L" + PACKAGE + "Expr$Set;L" + PACKAGE + "LoxInstance;" + OBJECT + ")" + OBJECT);
+        return Type.VALUE;
+    }
+
+    @Override
+    public Type visitThis(Expr.This expr) {
+        throw new Unsupported("method");
+    }
+
+    @Override
+    public Type visitSuper(Expr.Super aSuper) {
+        throw new Unsupported("method");
+    }
+}
@@ -2,38 +2,114 @@ package com.istrukov.jlox;
 
 import com.google.common.collect.ImmutableList;
 
+import javax.annotation.Nullable;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Lox {
     private static final boolean printTokens = false;
     private static final boolean printAst = false;
+    private static final boolean printBytecode = false;
 
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
+    private static boolean useVm = false;
+    private static boolean stream = false;
+    private static boolean optimize = true;
+    private static boolean jit = false;
+    @Nullable
+    private static Profiler profiler = null;
+    @Nullable
+    private static String profileOutput = null;
 
+    private static LoxEngine engine = new LoxEngine();
     private static Interpreter interpreter = new Interpreter();
+    private static VirtualMachine vm = new VirtualMachine();
 
     public static void main(String[] args) throws IOException {
-        if (args.length == 0) {
+        var scripts = new ArrayList<String>();
+        var cacheDirectory = System.getenv("JLOX_CACHE_DIR");
+        for (var arg : args) {
+            if (arg.equals("--vm")) {
+                useVm = true;
+            } else if (arg.equals("--no-optimize")) {
+                optimize = false;
+            } else if (arg.equals("--jit")) {
+                jit = true;
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("--profile")) {
+                profiler = new Profiler(Profiler.Mode.INSTRUMENT);
+            } else if (arg.equals("--profile=sample")) {
+                profiler = new Profiler(Profiler.Mode.SAMPLE);
+            } else if (arg.startsWith("--profile-output=")) {
+                profileOutput = arg.substring("--profile-output=".length());
+            } else if (arg.startsWith("--cache-dir=")) {
+                cacheDirectory = arg.substring("--cache-dir=".length());
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                scripts.add(arg);
+            }
+        }
+        if (cacheDirectory != null && !cacheDirectory.isEmpty()) {
+            engine = new LoxEngine(new ScriptCache(Paths.get(cacheDirectory)));
+        }
+        if (!optimize) {
+            engine = engine.withoutOptimizer();
+        }
+        if (profileOutput != null && profiler == null) {
+            profiler = new Profiler(Profiler.Mode.INSTRUMENT);
+        }
+        if (useVm && (profiler != null || stream || jit)) {
+            usage();
+        }
+        if (jit && profiler != null) {
+            usage();
+        }
+        interpreter.jit = jit;
+        if (profiler != null) {
+            interpreter.profiler = profiler;
+            profiler.start();
+        }
+        if (scripts.isEmpty()) {
             runPrompt();
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (scripts.size() == 1) {
+            runFile(scripts.get(0));
         } else {
-            System.err.println("Usage: jlox [SCRIPT]");
-            System.exit(1);
+            usage();
         }
     }
 
+    private static void usage() {
+        System.err.println("Usage: jlox [--vm | [--stream] [--jit | --profile[=sample] [--profile-output=FILE]]] [--no-optimize] [--cache-dir=DIR] [SCRIPT]");
+        System.exit(1);
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if (hadError || hadRuntimeError) System.exit(1);
+        var succeeded = run(Utf8Source.map(Paths.get(path)));
+        finishProfile();
+        if (!succeeded) System.exit(1);
+    }
+
+    /**
+     * Prints the profile to stderr and writes the collapsed stacks if they were requested.
+     */
+    private static void finishProfile() throws IOException {
+        if (profiler == null) {
+            return;
+        }
+        profiler.stop();
+        profiler.report(System.err);
+        if (profileOutput != null) {
+            try (var writer = Files.newBufferedWriter(Paths.get(profileOutput), StandardCharsets.UTF_8)) {
+                profiler.writeCollapsedStacks(writer);
+            }
+        }
     }
 
     private static void runPrompt() throws IOException {
@@ -44,58 +120,69 @@ public class Lox {
             var line = reader.readLine();
             if (line == null) break;
             run(line);
-            hadError = false;
         }
+        finishProfile();
     }
 
-    private static void run(String script) {
-        var scanner = new Scanner(script);
-        var tokens = ImmutableList.copyOf(scanner.scanTokens());
+    private static boolean run(CharSequence source) {
         if (printTokens) {
-            for (var token : tokens) {
+            for (var token : new Scanner(source, new ErrorReporter()).scanTokens()) {
                 System.out.printf("%s ", token);
             }
             System.out.println();
         }
-        var parser = new Parser(tokens);
-        var program = parser.parse();
+        if (stream) {
+            var result = engine.stream(source, interpreter);
+            report(result.errors());
+            return result.succeeded();
+        }
+        var script = engine.compile(source);
         if (printAst) {
             var printer = new AstPrinter();
-            for (var stmt : program) {
+            for (var stmt : script.program) {
                 var stmtLine = printer.print(stmt);
                 System.out.println(stmtLine);
             }
         }
-        if (hadError) {
-            return;
+        if (script.hasErrors()) {
+            report(script.errors());
+            return false;
         }
-        var resolver = new Resolver(interpreter);
-        resolver.resolve(program);
-        if (hadError) {
-            return;
+        if (useVm) {
+            var reporter = new ErrorReporter();
+            var function = Compiler.compile(script.program, reporter);
+            if (printBytecode) {
+                printBytecode(function);
+            }
+            if (reporter.hadError()) {
+                report(reporter.errors());
+                return false;
+            }
+            try {
+                vm.interpret(function);
+            } catch (RuntimeError error) {
+                report(ImmutableList.of(LoxError.runtime(error)));
+                return false;
+            }
+            return true;
         }
-        interpreter.interpret(program);
+        var result = script.run(interpreter);
+        report(result.errors());
+        return result.succeeded();
     }
 
-    static void error(Token token, String message) {
-        if (token.type() == TokenType.EOF) {
-            report(token.line(), " at end", message);
-        } else {
-            report(token.line(), String.format(" at '%s'", token.lexeme()), message);
+    private static void report(List<LoxError> errors) {
+        for (var error : errors) {
+            System.err.println(error);
         }
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
-
-    static void runtimeError(RuntimeError error) {
-        System.err.printf("[line %d] %s\n", error.token.line(), error.getMessage());
-        hadRuntimeError = true;
-    }
-
-    static void report(int line, String where, String message) {
-        System.err.printf("[line %d] Error%s: %s\n", line, where, message);
-        hadError = true;
+    private static void printBytecode(VmFunction function) {
+        System.out.print(function.chunk.disassemble(function.toString()));
+        for (var constant : function.chunk.constants) {
+            if (constant instanceof VmFunction nested) {
+                printBytecode(nested);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,186 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A call with up to three arguments in code compiled by the {@link JitCompiler}, linked to the callee it last saw.
+ * Compiled code calls through {@link #dynamicInvoker()}, whose type is {@code (Interpreter, LoxCallable, Object...)}.
+ *
+ * <p>The site starts out unlinked. On its first call it links itself to a target for the callee it sees: the compiled
+ * code of a function once it has any, the function itself until then, or the generic call path for classes and
+ * natives. Function targets are guarded by the callee's declaration, so they keep hitting for the new closures each
+ * run of a script creates, and by the {@link Jit#switchPoint} of the declaration, so the site relinks when the
+ * function is compiled or deoptimized. A call with another kind of callee relinks the site, and a site that had to
+ * relink {@link #MAX_RELINKS} times stays on the generic path. HotSpot treats the target as a constant, so a
+ * monomorphic call from one compiled function to another can be inlined.
+ */
+final class LoxCallSite extends MutableCallSite {
+    private static final int MAX_RELINKS = 8;
+    private static final MethodHandle FUNCTION_OF;
+    private static final MethodHandle PLAIN_FUNCTION;
+    private static final MethodHandle NOT_FUNCTION;
+    private static final MethodHandle RELINK;
+    private static final MethodHandle[] COMPILED = new MethodHandle[4];
+    private static final MethodHandle[] FUNCTION = new MethodHandle[4];
+    private static final MethodHandle[] GENERIC = new MethodHandle[4];
+
+    static {
+        var lookup = MethodHandles.lookup();
+        try {
+            var test = MethodType.methodType(boolean.class, Stmt.Function.class, LoxCallable.class);
+            FUNCTION_OF = lookup.findStatic(LoxCallSite.class, "functionOf", test);
+            PLAIN_FUNCTION = lookup.findStatic(LoxCallSite.class, "plainFunction", test);
+            NOT_FUNCTION = lookup.findStatic(LoxCallSite.class, "notFunction",
+                    MethodType.methodType(boolean.class, LoxCallable.class));
+            RELINK = lookup.findVirtual(LoxCallSite.class, "relink",
+                    MethodType.methodType(Object.class, Interpreter.class, LoxCallable.class, Object[].class));
+            COMPILED[0] = MethodHandles.dropArguments(lookup.findVirtual(CompiledFunction.class, "call0",
+                    MethodType.methodType(Object.class, Interpreter.class)), 1, LoxFunction.class);
+            for (int arity = 1; arity <= 3; arity++) {
+                COMPILED[arity] = lookup.findStatic(LoxCallSite.class, "compiled" + arity,
+                        MethodType.methodType(Object.class, CompiledFunction.class, LoxFunction.class, Interpreter.class)
+                                .appendParameterTypes(Collections.nCopies(arity, Object.class)));
+            }
+            for (int arity = 0; arity <= 3; arity++) {
+                List<Class<?>> arguments = Collections.nCopies(arity, Object.class);
+                FUNCTION[arity] = lookup.findVirtual(LoxFunction.class, "call" + arity,
+                        MethodType.methodType(Object.class, Interpreter.class).appendParameterTypes(arguments));
+                GENERIC[arity] = lookup.findVirtual(Interpreter.class, "call" + arity,
+                        MethodType.methodType(Object.class, Expr.Call.class, LoxCallable.class).appendParameterTypes(arguments));
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new LinkageError("cannot find call site targets", e);
+        }
+    }
+
+    private final Expr.Call call;
+    private final int arity;
+    private final MethodHandle relink;
+    private int relinks = 0;
+    private boolean generic = false;
+
+    LoxCallSite(Expr.Call call) {
+        super(type(call.arguments.size()));
+        this.call = call;
+        this.arity = call.arguments.size();
+        this.relink = RELINK.bindTo(this).asCollector(Object[].class, arity).asType(type());
+        setTarget(relink);
+    }
+
+    static MethodType type(int arity) {
+        return MethodType.methodType(Object.class, Interpreter.class, LoxCallable.class)
+                .appendParameterTypes(Collections.nCopies(arity, Object.class));
+    }
+
+    /**
+     * Whether the site relinked too often and now always takes the generic call path.
+     */
+    boolean isGeneric() {
+        return generic;
+    }
+
+    @Nullable
+    Object relink(Interpreter interpreter, LoxCallable callee, Object[] arguments) {
+        if (++relinks > MAX_RELINKS) {
+            generic = true;
+            setTarget(generic());
+        } else {
+            setTarget(link(interpreter, callee));
+        }
+        switch (arity) {
+            case 0:
+                return interpreter.call0(call, callee);
+            case 1:
+                return interpreter.call1(call, callee, arguments[0]);
+            case 2:
+                return interpreter.call2(call, callee, arguments[0], arguments[1]);
+            default:
+                return interpreter.call3(call, callee, arguments[0], arguments[1], arguments[2]);
+        }
+    }
+
+    /**
+     * Returns the target for a callee. Functions are recognized by their declaration rather than by identity, since
+     * each run of a script, and each execution of a nested declaration, creates new function objects.
+     */
+    private MethodHandle link(Interpreter interpreter, LoxCallable callee) {
+        if (callee instanceof LoxFunction function && function.arity() == arity) {
+            // Take the switch point first, so code that changes after it is read still invalidates this target.
+            var switchPoint = function.jit().switchPoint();
+            var code = function.compiled(interpreter);
+            MethodHandle target;
+            MethodHandle test;
+            if (code != null) {
+                target = COMPILED[arity].bindTo(code);
+                test = PLAIN_FUNCTION.bindTo(function.declaration());
+            } else {
+                target = FUNCTION[arity];
+                test = FUNCTION_OF.bindTo(function.declaration());
+            }
+            // Targets take the function first; the site passes the interpreter first.
+            var order = new int[arity + 2];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            order[0] = 1;
+            order[1] = 0;
+            var swapped = target.type().changeParameterType(0, Interpreter.class).changeParameterType(1, LoxFunction.class);
+            target = MethodHandles.permuteArguments(target, swapped, order).asType(type());
+            target = switchPoint.guardWithTest(target, relink);
+            return MethodHandles.guardWithTest(MethodHandles.dropArguments(test, 0, Interpreter.class), target, relink);
+        }
+        // Classes and natives go through the generic path anyway, so any of them can share the target.
+        var test = MethodHandles.dropArguments(NOT_FUNCTION, 0, Interpreter.class);
+        return MethodHandles.guardWithTest(test, generic(), relink);
+    }
+
+    private MethodHandle generic() {
+        return MethodHandles.insertArguments(GENERIC[arity], 1, call);
+    }
+
+    static boolean functionOf(Stmt.Function declaration, LoxCallable callee) {
+        return callee instanceof LoxFunction function && function.declaration() == declaration;
+    }
+
+    /**
+     * Tests for a function of the declaration that compiled code can run, that is one not bound to an instance.
+     */
+    static boolean plainFunction(Stmt.Function declaration, LoxCallable callee) {
+        return callee instanceof LoxFunction function && function.declaration() == declaration && !function.isBound();
+    }
+
+    static boolean notFunction(LoxCallable callee) {
+        return !(callee instanceof LoxFunction);
+    }
+
+    /**
+     * Calls compiled code, running the function in the interpreter instead if the arguments fail its checks. Code
+     * without parameters has nothing to check and is called directly.
+     */
+    @Nullable
+    static Object compiled1(CompiledFunction code, LoxFunction function, Interpreter interpreter,
+                             @Nullable Object first) {
+        var result = code.call1(interpreter, first);
+        return result != CompiledFunction.DEOPTIMIZED ? result : function.call1(interpreter, first);
+    }
+
+    @Nullable
+    static Object compiled2(CompiledFunction code, LoxFunction function, Interpreter interpreter,
+                             @Nullable Object first, @Nullable Object second) {
+        var result = code.call2(interpreter, first, second);
+        return result != CompiledFunction.DEOPTIMIZED ? result : function.call2(interpreter, first, second);
+    }
+
+    @Nullable
+    static Object compiled3(CompiledFunction code, LoxFunction function, Interpreter interpreter,
+                             @Nullable Object first, @Nullable Object second, @Nullable Object third) {
+        var result = code.call3(interpreter, first, second, third);
+        return result != CompiledFunction.DEOPTIMIZED ? result : function.call3(interpreter, first, second, third);
+    }
+}
@@ -1,12 +1,38 @@
 package com.istrukov.jlox;
 
-import com.google.common.collect.ImmutableList;
-
 import javax.annotation.Nullable;
 
+/**
+ * Something Lox code can call. The interpreter calls with up to three arguments through the fixed-arity entry points,
+ * so the common calls pass their arguments without allocating, and with more through {@link #call}. Implementations
+ * only have to provide {@link #call}; the others default to it.
+ */
 public interface LoxCallable {
     int arity();
 
+    /**
+     * Calls with the arguments in an array, which the callee may not keep.
+     */
+    @Nullable
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    @Nullable
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, new Object[0]);
+    }
+
+    @Nullable
+    default Object call1(Interpreter interpreter, @Nullable Object first) {
+        return call(interpreter, new Object[]{first});
+    }
+
+    @Nullable
+    default Object call2(Interpreter interpreter, @Nullable Object first, @Nullable Object second) {
+        return call(interpreter, new Object[]{first, second});
+    }
+
     @Nullable
-    Object call(Interpreter interpreter, ImmutableList<Object> arguments);
+    default Object call3(Interpreter interpreter, @Nullable Object first, @Nullable Object second, @Nullable Object third) {
+        return call(interpreter, new Object[]{first, second, third});
+    }
 }
@@ -1,20 +1,40 @@
 package com.istrukov.jlox;
 
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
 import javax.annotation.Nullable;
+import java.util.HashMap;
 import java.util.Optional;
 
 public class LoxClass implements LoxCallable {
     final String name;
     final Optional<LoxClass> superclass;
-    private final ImmutableMap<String, LoxFunction> methods;
+    /**
+     * Methods of this class together with all inherited ones, so lookups never walk the superclass chain.
+     */
+    private final ImmutableMap<Symbol, LoxFunction> methods;
+    @Nullable
+    private final LoxFunction initializer;
+    final Shape rootShape;
+    /**
+     * Largest field array seen in instances of this class, used to size new ones. Updated without synchronization,
+     * since a stale value only costs a resize.
+     */
+    int instanceSizeHint = 0;
+
+    public LoxClass(String name, Optional<LoxClass> superclass, ImmutableMap<Symbol, LoxFunction> methods) {
+        this(name, superclass, methods, Shape.root());
+    }
 
-    public LoxClass(String name, Optional<LoxClass> superclass, ImmutableMap<String, LoxFunction> methods) {
+    LoxClass(String name, Optional<LoxClass> superclass, ImmutableMap<Symbol, LoxFunction> methods, Shape rootShape) {
         this.name = name;
+        this.rootShape = rootShape;
         this.superclass = superclass;
-        this.methods = methods;
+        var flattened = new HashMap<Symbol, LoxFunction>();
+        superclass.ifPresent(parent -> flattened.putAll(parent.methods));
+        flattened.putAll(methods);
+        this.methods = ImmutableMap.copyOf(flattened);
+        this.initializer = this.methods.get(Symbol.INIT);
     }
 
     @Override
@@ -24,7 +44,6 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        var initializer = methods.get("init");
         if (initializer == null) {
             return 0;
         }
@@ -33,19 +52,52 @@ public class LoxClass implements LoxCallable {
 
     @Nullable
     @Override
-    public Object call(Interpreter interpreter, ImmutableList<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        var instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke(interpreter, instance, arguments);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
         var instance = new LoxInstance(this);
-        var initializer = methods.get("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, ImmutableList.of());
+            initializer.invoke0(interpreter, instance);
         }
         return instance;
     }
 
-    Optional<LoxFunction> findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return Optional.of(methods.get(name));
+    @Override
+    public Object call1(Interpreter interpreter, @Nullable Object first) {
+        var instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke1(interpreter, instance, first);
         }
-        return superclass.flatMap(superclass -> superclass.findMethod(name));
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, @Nullable Object first, @Nullable Object second) {
+        var instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke2(interpreter, instance, first, second);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, @Nullable Object first, @Nullable Object second, @Nullable Object third) {
+        var instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke3(interpreter, instance, first, second, third);
+        }
+        return instance;
+    }
+
+    @Nullable
+    LoxFunction findMethod(Symbol name) {
+        return methods.get(name);
     }
 }
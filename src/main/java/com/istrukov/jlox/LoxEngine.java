@@ -0,0 +1,125 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Entry point for embedding jlox: compiles source once into a {@link CompiledScript} that can then be run many times
+ * in the same JVM. Errors are returned rather than printed.
+ */
+public final class LoxEngine {
+    @Nullable
+    private final ScriptCache cache;
+    private final boolean optimize;
+
+    public LoxEngine() {
+        this(null, true);
+    }
+
+    /**
+     * Creates an engine that looks up compiled scripts in the given cache before compiling them, and stores the ones
+     * it had to compile.
+     */
+    public LoxEngine(ScriptCache cache) {
+        this(cache, true);
+    }
+
+    private LoxEngine(@Nullable ScriptCache cache, boolean optimize) {
+        this.cache = cache;
+        this.optimize = optimize;
+    }
+
+    /**
+     * Returns an engine like this one that runs scripts exactly as written, without the {@link Optimizer}. Useful to
+     * rule the optimizer out when a script misbehaves.
+     */
+    public LoxEngine withoutOptimizer() {
+        return new LoxEngine(cache, false);
+    }
+
+    public CompiledScript compile(CharSequence source) {
+        if (cache != null) {
+            var cached = cache.load(source);
+            if (cached.isPresent()) {
+                return new CompiledScript(optimize(cached.get()), ImmutableList.of());
+            }
+        }
+        var reporter = new ErrorReporter();
+        var program = new Parser(new Scanner(source, reporter).scanTokens(), reporter).parse();
+        if (!reporter.hadError()) {
+            new Resolver(reporter).resolve(program);
+        }
+        if (reporter.hadError()) {
+            return new CompiledScript(program, reporter.errors());
+        }
+        // The cache holds programs as resolved, so engines with and without the optimizer can share it.
+        if (cache != null) {
+            cache.store(source, program);
+        }
+        return new CompiledScript(optimize(program), ImmutableList.of());
+    }
+
+    /**
+     * Prepares a resolved program to run: optimizes it unless disabled, then infers the types of its expressions.
+     */
+    private ImmutableList<Stmt> optimize(ImmutableList<Stmt> program) {
+        var optimized = optimize ? new Optimizer().optimize(program) : program;
+        new TypeInferrer().infer(optimized);
+        return optimized;
+    }
+
+    /**
+     * Compiles a UTF-8 encoded script file. The file is mapped into memory and scanned in place rather than decoded
+     * into a string first.
+     */
+    public CompiledScript compile(Path file) throws IOException {
+        return compile(Utf8Source.map(file));
+    }
+
+    /**
+     * Runs a script while compiling it: each top-level declaration is parsed, resolved and executed before the next
+     * one is scanned, so memory use is bounded by the largest declaration rather than by the whole script. Unlike a
+     * {@link CompiledScript}, the statements before a compile error have already run when it is found; the rest of
+     * the script is still checked for errors but no longer executed. The cache is not used.
+     */
+    public ExecutionResult stream(CharSequence source, Globals globals) {
+        return stream(source, new Interpreter(globals));
+    }
+
+    ExecutionResult stream(CharSequence source, Interpreter interpreter) {
+        var reporter = new ErrorReporter();
+        var parser = new Parser(new Scanner(source, reporter), reporter);
+        var resolver = new Resolver(reporter);
+        try {
+            while (parser.hasNext()) {
+                var stmt = parser.next();
+                if (stmt.isEmpty()) {
+                    continue;
+                }
+                resolver.resolve(stmt.get());
+                if (reporter.hadError()) {
+                    continue;
+                }
+                var optimized = optimize(ImmutableList.of(stmt.get()));
+                try {
+                    interpreter.interpret(optimized);
+                } catch (RuntimeError error) {
+                    return new ExecutionResult(ImmutableList.of(LoxError.runtime(error)));
+                }
+            }
+            return new ExecutionResult(reporter.errors());
+        } finally {
+            interpreter.globals.output().flush();
+        }
+    }
+
+    /**
+     * Returns a set of globals holding only the builtins, to share between runs of one or more scripts.
+     */
+    public Globals newGlobals() {
+        return new Globals();
+    }
+}
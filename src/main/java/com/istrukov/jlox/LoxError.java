@@ -0,0 +1,27 @@
+package com.istrukov.jlox;
+
+/**
+ * An error found while compiling or running a script, reported at a source line. For compile errors {@code where}
+ * names the offending token, such as {@code " at 'x'"}; otherwise it is empty.
+ */
+public record LoxError(Kind kind, int line, String where, String message) {
+    public enum Kind {
+        COMPILE,
+        RUNTIME
+    }
+
+    static LoxError runtime(RuntimeError error) {
+        return new LoxError(Kind.RUNTIME, error.line, "", String.valueOf(error.getMessage()));
+    }
+
+    /**
+     * Formats the error the way the command line interpreter prints it.
+     */
+    @Override
+    public String toString() {
+        if (kind == Kind.COMPILE) {
+            return String.format("[line %d] Error%s: %s", line, where, message);
+        }
+        return String.format("[line %d] %s", line, message);
+    }
+}
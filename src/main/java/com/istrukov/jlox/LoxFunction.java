@@ -1,19 +1,31 @@
 package com.istrukov.jlox;
 
-import com.google.common.collect.ImmutableList;
-
 import javax.annotation.Nullable;
-import java.util.Optional;
 
 public class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
     private final Environment closure;
     private final boolean isInitializer;
+    /**
+     * The instance a method was bound to by a property access, or null for plain functions and unbound methods.
+     */
+    @Nullable
+    private final LoxInstance receiver;
 
     public LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+        this(declaration, closure, isInitializer, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, @Nullable LoxInstance receiver) {
         this.declaration = declaration;
         this.closure = closure;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<fn %s>", declaration.name.lexeme());
     }
 
     @Override
@@ -23,28 +35,221 @@ public class LoxFunction implements LoxCallable {
 
     @Nullable
     @Override
-    public Object call(Interpreter interpreter, ImmutableList<Object> arguments) {
-        var locals = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            locals.define(declaration.params.get(i).lexeme(), arguments.get(i));
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    @Nullable
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke0(interpreter, receiver);
+    }
+
+    @Nullable
+    @Override
+    public Object call1(Interpreter interpreter, @Nullable Object first) {
+        return invoke1(interpreter, receiver, first);
+    }
+
+    @Nullable
+    @Override
+    public Object call2(Interpreter interpreter, @Nullable Object first, @Nullable Object second) {
+        return invoke2(interpreter, receiver, first, second);
+    }
+
+    @Nullable
+    @Override
+    public Object call3(Interpreter interpreter, @Nullable Object first, @Nullable Object second, @Nullable Object third) {
+        return invoke3(interpreter, receiver, first, second, third);
+    }
+
+    /**
+     * Calls the function with the given receiver, which methods find in the first slot of their frame ahead of the
+     * parameters. Method calls use this and the fixed-arity variants directly instead of going through
+     * {@link #bind}.
+     */
+    @Nullable
+    Object invoke(Interpreter interpreter, @Nullable LoxInstance receiver, Object[] arguments) {
+        var code = compiled(interpreter, receiver);
+        if (code != null) {
+            var result = code.call(interpreter, arguments);
+            if (result != CompiledFunction.DEOPTIMIZED) {
+                return result;
+            }
+        }
+        int caller = interpreter.pushFrame(declaration.frameSize);
+        try {
+            var locals = enter(interpreter, receiver);
+            int first = receiver == null ? 0 : 1;
+            for (int i = 0; i < arguments.length; i++) {
+                bindParameter(interpreter, locals, first + i, arguments[i]);
+            }
+            return run(interpreter, receiver, locals);
+        } finally {
+            interpreter.popFrame(caller);
+        }
+    }
+
+    @Nullable
+    Object invoke0(Interpreter interpreter, @Nullable LoxInstance receiver) {
+        var code = compiled(interpreter, receiver);
+        if (code != null) {
+            return code.call0(interpreter);
+        }
+        int caller = interpreter.pushFrame(declaration.frameSize);
+        try {
+            return run(interpreter, receiver, enter(interpreter, receiver));
+        } finally {
+            interpreter.popFrame(caller);
+        }
+    }
+
+    @Nullable
+    Object invoke1(Interpreter interpreter, @Nullable LoxInstance receiver, @Nullable Object first) {
+        var code = compiled(interpreter, receiver);
+        if (code != null) {
+            var result = code.call1(interpreter, first);
+            if (result != CompiledFunction.DEOPTIMIZED) {
+                return result;
+            }
+        }
+        int caller = interpreter.pushFrame(declaration.frameSize);
+        try {
+            var locals = enter(interpreter, receiver);
+            int slot = receiver == null ? 0 : 1;
+            bindParameter(interpreter, locals, slot, first);
+            return run(interpreter, receiver, locals);
+        } finally {
+            interpreter.popFrame(caller);
+        }
+    }
+
+    @Nullable
+    Object invoke2(Interpreter interpreter, @Nullable LoxInstance receiver, @Nullable Object first, @Nullable Object second) {
+        var code = compiled(interpreter, receiver);
+        if (code != null) {
+            var result = code.call2(interpreter, first, second);
+            if (result != CompiledFunction.DEOPTIMIZED) {
+                return result;
+            }
         }
+        int caller = interpreter.pushFrame(declaration.frameSize);
         try {
-            interpreter.executeBlock(declaration.body, locals);
-        } catch (Return ret) {
-            if (isInitializer) {
-                return closure.getAt(0, new Token(TokenType.THIS, "this", Optional.empty(), 0));
+            var locals = enter(interpreter, receiver);
+            int slot = receiver == null ? 0 : 1;
+            bindParameter(interpreter, locals, slot, first);
+            bindParameter(interpreter, locals, slot + 1, second);
+            return run(interpreter, receiver, locals);
+        } finally {
+            interpreter.popFrame(caller);
+        }
+    }
+
+    @Nullable
+    Object invoke3(Interpreter interpreter, @Nullable LoxInstance receiver,
+                   @Nullable Object first, @Nullable Object second, @Nullable Object third) {
+        var code = compiled(interpreter, receiver);
+        if (code != null) {
+            var result = code.call3(interpreter, first, second, third);
+            if (result != CompiledFunction.DEOPTIMIZED) {
+                return result;
             }
-            return ret.value;
         }
+        int caller = interpreter.pushFrame(declaration.frameSize);
+        try {
+            var locals = enter(interpreter, receiver);
+            int slot = receiver == null ? 0 : 1;
+            bindParameter(interpreter, locals, slot, first);
+            bindParameter(interpreter, locals, slot + 1, second);
+            bindParameter(interpreter, locals, slot + 2, third);
+            return run(interpreter, receiver, locals);
+        } finally {
+            interpreter.popFrame(caller);
+        }
+    }
+
+    Stmt.Function declaration() {
+        return declaration;
+    }
+
+    Jit jit() {
+        return declaration.jit;
+    }
+
+    boolean isBound() {
+        return receiver != null;
+    }
+
+    /**
+     * Returns the code the {@link Jit} compiled for calls to this function, for {@link LoxCallSite}s to link to.
+     */
+    @Nullable
+    CompiledFunction compiled(Interpreter interpreter) {
+        return compiled(interpreter, receiver);
+    }
+
+    /**
+     * Returns the code the {@link Jit} compiled for the function, if the interpreter uses it and the call is not to
+     * a method, which the compiler does not handle.
+     */
+    @Nullable
+    private CompiledFunction compiled(Interpreter interpreter, @Nullable LoxInstance receiver) {
+        if (!interpreter.jit || receiver != null || isInitializer || interpreter.profiler != null) {
+            return null;
+        }
+        return declaration.jit.code();
+    }
+
+    /**
+     * Sets up the environment of a call whose frame has just been pushed, binding the receiver if there is one.
+     */
+    private Environment enter(Interpreter interpreter, @Nullable LoxInstance receiver) {
+        var locals = declaration.slots > 0 ? new Environment(closure, declaration.slots) : closure;
+        if (receiver != null) {
+            bindParameter(interpreter, locals, 0, receiver);
+        }
+        return locals;
+    }
+
+    @Nullable
+    private Object run(Interpreter interpreter, @Nullable LoxInstance receiver, Environment locals) {
+        var profiler = interpreter.profiler;
+        if (profiler == null) {
+            return execute(interpreter, receiver, locals);
+        }
+        profiler.enter(declaration);
+        try {
+            return execute(interpreter, receiver, locals);
+        } finally {
+            profiler.exit();
+        }
+    }
+
+    @Nullable
+    private Object execute(Interpreter interpreter, @Nullable LoxInstance receiver, Environment locals) {
+        var completion = interpreter.executeBlock(declaration.body, locals);
         if (isInitializer) {
-            return closure.getAt(0, new Token(TokenType.THIS, "this", Optional.empty(), 0));
+            return receiver;
+        }
+        if (completion == Completion.RETURN) {
+            return interpreter.takeReturnValue();
         }
         return null;
     }
 
+    private void bindParameter(Interpreter interpreter, Environment locals, int slot, @Nullable Object value) {
+        if (interpreter.jit) {
+            declaration.jit.observe(slot, value);
+        }
+        int captured = declaration.capturedParameters[slot];
+        if (captured >= 0) {
+            locals.define(captured, value);
+        } else {
+            interpreter.setFrameSlot(slot, value);
+        }
+    }
+
     public LoxFunction bind(LoxInstance loxInstance) {
-        var environment = new Environment(closure);
-        environment.define("this", loxInstance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, closure, isInitializer, loxInstance);
     }
 }
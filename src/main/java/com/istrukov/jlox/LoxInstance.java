@@ -1,15 +1,33 @@
 package com.istrukov.jlox;
 
 import javax.annotation.Nullable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+/**
+ * An instance of a Lox class. Its fields live in the slots its {@link Shape} assigns them, with the first slots in an
+ * array sized for as many fields as instances of the class had so far and the rest in fixed-size chunks. Existing
+ * slots never move when a field is added, so writes to them need no lock and cannot be lost to a concurrent task
+ * adding a field; only adding a field, which changes the shape, takes the instance's lock.
+ */
 public class LoxInstance {
-    private final LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final int CHUNK_SIZE = 8;
+    private static final Object[][] NO_CHUNKS = new Object[0][];
+
+    final LoxClass klass;
+    /**
+     * Written after the slots it describes, so a thread that reads the shape also sees room for its fields.
+     */
+    volatile Shape shape;
+    private final Object[] fields;
+    /**
+     * Slots past {@link #fields}. Replaced by a longer copy when a chunk is added, which still holds the same chunks.
+     */
+    private Object[][] chunks = NO_CHUNKS;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = new Object[klass.instanceSizeHint];
     }
 
     @Override
@@ -17,18 +35,68 @@ public class LoxInstance {
         return klass.name + " instance";
     }
 
+    @Nullable
     public Object get(Token name) {
-        if (fields.containsKey(name.lexeme())) {
-            return fields.get(name.lexeme());
+        int slot = shape.slotOf(name.symbol());
+        if (slot >= 0) {
+            return getField(slot);
         }
-        var method = klass.findMethod(name.lexeme());
-        if (method.isPresent()) {
-            return method.get().bind(this);
+        var method = klass.findMethod(name.symbol());
+        if (method != null) {
+            return method.bind(this);
         }
         throw new RuntimeError(name, String.format("Undefined property '%s'", name.lexeme()));
     }
 
     public void set(Token name, @Nullable Object value) {
-        fields.put(name.lexeme(), value);
+        while (true) {
+            var current = shape;
+            int slot = current.slotOf(name.symbol());
+            if (slot >= 0) {
+                setField(slot, value);
+                return;
+            }
+            if (addField(current, current.withField(name.symbol()), value)) {
+                return;
+            }
+        }
+    }
+
+    @Nullable
+    Object getField(int slot) {
+        if (slot < fields.length) {
+            return fields[slot];
+        }
+        slot -= fields.length;
+        return chunks[slot / CHUNK_SIZE][slot % CHUNK_SIZE];
+    }
+
+    void setField(int slot, @Nullable Object value) {
+        if (slot < fields.length) {
+            fields[slot] = value;
+            return;
+        }
+        slot -= fields.length;
+        chunks[slot / CHUNK_SIZE][slot % CHUNK_SIZE] = value;
+    }
+
+    /**
+     * Stores a new field by moving this instance from shape {@code from} to {@code next}, adding a chunk if needed.
+     * Returns false without changing anything if another task changed the shape first.
+     */
+    synchronized boolean addField(Shape from, Shape next, @Nullable Object value) {
+        if (shape != from) {
+            return false;
+        }
+        int slot = from.size();
+        if (slot >= fields.length + chunks.length * CHUNK_SIZE) {
+            var grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = new Object[CHUNK_SIZE];
+            chunks = grown;
+        }
+        klass.instanceSizeHint = Math.max(klass.instanceSizeHint, next.size());
+        setField(slot, value);
+        shape = next;
+        return true;
     }
 }
@@ -0,0 +1,62 @@
+package com.istrukov.jlox;
+
+/**
+ * Instruction set of the bytecode {@link VirtualMachine}. Operands follow the opcode in the code stream: constant,
+ * name and jump operands are two bytes (big-endian), local, upvalue and argument-count operands are one byte.
+ */
+final class OpCode {
+    private OpCode() {
+    }
+
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;
+    static final byte SET_LOCAL = 6;
+    static final byte GET_GLOBAL = 7;
+    static final byte DEFINE_GLOBAL = 8;
+    static final byte SET_GLOBAL = 9;
+    static final byte GET_UPVALUE = 10;
+    static final byte SET_UPVALUE = 11;
+    static final byte GET_PROPERTY = 12;
+    static final byte SET_PROPERTY = 13;
+    static final byte GET_SUPER = 14;
+    static final byte EQUAL = 15;
+    static final byte GREATER = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS = 18;
+    static final byte LESS_EQUAL = 19;
+    static final byte ADD = 20;
+    static final byte SUBTRACT = 21;
+    static final byte MULTIPLY = 22;
+    static final byte DIVIDE = 23;
+    static final byte NOT = 24;
+    static final byte NEGATE = 25;
+    static final byte PRINT = 26;
+    static final byte JUMP = 27;
+    static final byte JUMP_IF_FALSE = 28;
+    static final byte LOOP = 29;
+    static final byte CALL = 30;
+    static final byte INVOKE = 31;
+    static final byte SUPER_INVOKE = 32;
+    static final byte CLOSURE = 33;
+    static final byte CLOSE_UPVALUE = 34;
+    static final byte RETURN = 35;
+    static final byte CLASS = 36;
+    static final byte INHERIT = 37;
+    static final byte METHOD = 38;
+
+    private static final String[] names = {
+            "CONSTANT", "NIL", "TRUE", "FALSE", "POP", "GET_LOCAL", "SET_LOCAL", "GET_GLOBAL", "DEFINE_GLOBAL",
+            "SET_GLOBAL", "GET_UPVALUE", "SET_UPVALUE", "GET_PROPERTY", "SET_PROPERTY", "GET_SUPER", "EQUAL",
+            "GREATER", "GREATER_EQUAL", "LESS", "LESS_EQUAL", "ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "NOT",
+            "NEGATE", "PRINT", "JUMP", "JUMP_IF_FALSE", "LOOP", "CALL", "INVOKE", "SUPER_INVOKE", "CLOSURE",
+            "CLOSE_UPVALUE", "RETURN", "CLASS", "INHERIT", "METHOD",
+    };
+
+    static String name(byte opcode) {
+        return names[opcode];
+    }
+}
@@ -0,0 +1,374 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+import java.util.Objects;
+
+/**
+ * Simplifies a resolved program before any engine runs it: operators applied to constants are folded, groupings are
+ * dropped, and branches that can never run, expression statements without effects and statements after a
+ * {@code return} are removed.
+ *
+ * <p>The optimizer runs after the {@link Resolver}, so a script reports the same compile errors with or without it.
+ * Nodes are only rebuilt when one of their children changed, and rebuilt nodes carry over what the resolver recorded
+ * on the originals. Folding never hides a runtime error: operators whose constant operands would fail are left for
+ * the engine to report.
+ */
+final class Optimizer implements Visitor<AstNode> {
+    ImmutableList<Stmt> optimize(ImmutableList<Stmt> program) {
+        return statements(program);
+    }
+
+    private Expr expr(Expr expr) {
+        return (Expr) Objects.requireNonNull(expr.accept(this));
+    }
+
+    /**
+     * Returns the optimized statement, or null if it can be removed.
+     */
+    @Nullable
+    private Stmt stmt(Stmt stmt) {
+        return (Stmt) stmt.accept(this);
+    }
+
+    /**
+     * Optimizes a statement in a position that needs one, such as a loop body, using an empty block for a removed one.
+     */
+    private Stmt branch(Stmt stmt) {
+        var optimized = stmt(stmt);
+        if (optimized == null) {
+            return at(stmt, new Stmt.Block(ImmutableList.of()));
+        }
+        return optimized;
+    }
+
+    private ImmutableList<Stmt> statements(ImmutableList<Stmt> statements) {
+        var builder = ImmutableList.<Stmt>builderWithExpectedSize(statements.size());
+        boolean changed = false;
+        for (int i = 0; i < statements.size(); i++) {
+            var stmt = statements.get(i);
+            var optimized = stmt(stmt);
+            if (optimized != stmt) {
+                changed = true;
+            }
+            if (optimized != null) {
+                builder.add(optimized);
+            }
+            if (optimized instanceof Stmt.Return) {
+                changed |= i < statements.size() - 1;
+                break;
+            }
+        }
+        return changed ? builder.build() : statements;
+    }
+
+    private static <T extends Stmt> T at(Stmt original, T replacement) {
+        replacement.line = original.line;
+        return replacement;
+    }
+
+    private static Expr.Literal literal(@Nullable Object value) {
+        if (value instanceof Double number) {
+            return new Expr.Literal(new Token.Literal(number));
+        }
+        if (value instanceof String string) {
+            return new Expr.Literal(new Token.Literal(string));
+        }
+        if (value instanceof Boolean bool) {
+            return new Expr.Literal(new Token.Literal(bool));
+        }
+        return new Expr.Literal(new Token.Literal());
+    }
+
+    /**
+     * Returns the literal an operator produces for constant operands, or null if it would fail at run time.
+     */
+    @Nullable
+    private static Expr.Literal fold(TokenType operator, @Nullable Object left, @Nullable Object right) {
+        if (operator == TokenType.EQUAL_EQUAL) {
+            return literal(Interpreter.isEqual(left, right));
+        }
+        if (operator == TokenType.BANG_EQUAL) {
+            return literal(!Interpreter.isEqual(left, right));
+        }
+        if (left instanceof String l && right instanceof String r && operator == TokenType.PLUS) {
+            return literal(l + r);
+        }
+        if (!(left instanceof Double l) || !(right instanceof Double r)) {
+            return null;
+        }
+        switch (operator) {
+            case PLUS:
+                return literal(l + r);
+            case MINUS:
+                return literal(l - r);
+            case STAR:
+                return literal(l * r);
+            case SLASH:
+                return literal(l / r);
+            case GREATER:
+                return literal(l > r);
+            case GREATER_EQUAL:
+                return literal(l >= r);
+            case LESS:
+                return literal(l < r);
+            case LESS_EQUAL:
+                return literal(l <= r);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public AstNode visitBinary(Expr.Binary binary) {
+        var left = expr(binary.left);
+        var right = expr(binary.right);
+        if (left instanceof Expr.Literal l && right instanceof Expr.Literal r) {
+            var folded = fold(binary.operator.type(), l.constant, r.constant);
+            if (folded != null) {
+                return folded;
+            }
+        }
+        if (left == binary.left && right == binary.right) {
+            return binary;
+        }
+        return new Expr.Binary(left, binary.operator, right);
+    }
+
+    @Override
+    public AstNode visitUnary(Expr.Unary unary) {
+        var right = expr(unary.right);
+        if (right instanceof Expr.Literal literal) {
+            if (unary.operator.type() == TokenType.BANG) {
+                return literal(!Interpreter.isTruthy(literal.constant));
+            }
+            if (unary.operator.type() == TokenType.MINUS && literal.constant instanceof Double number) {
+                return literal(-number);
+            }
+        }
+        if (right == unary.right) {
+            return unary;
+        }
+        return new Expr.Unary(unary.operator, right);
+    }
+
+    @Override
+    public AstNode visitGrouping(Expr.Grouping grouping) {
+        return expr(grouping.expression);
+    }
+
+    @Override
+    public AstNode visitLiteral(Expr.Literal literal) {
+        return literal;
+    }
+
+    @Nullable
+    @Override
+    public AstNode visitExpression(Stmt.Expression expression) {
+        var expr = expr(expression.expression);
+        if (expr instanceof Expr.Literal) {
+            return null;
+        }
+        if (expr == expression.expression) {
+            return expression;
+        }
+        return at(expression, new Stmt.Expression(expr));
+    }
+
+    @Override
+    public AstNode visitPrint(Stmt.Print print) {
+        var expr = expr(print.expression);
+        if (expr == print.expression) {
+            return print;
+        }
+        return at(print, new Stmt.Print(expr));
+    }
+
+    @Override
+    public AstNode visitVar(Stmt.VariableDeclaration variableDeclaration) {
+        var initializer = variableDeclaration.initializer.map(this::expr);
+        if (initializer.equals(variableDeclaration.initializer)) {
+            return variableDeclaration;
+        }
+        var copy = at(variableDeclaration, new Stmt.VariableDeclaration(variableDeclaration.name, initializer));
+        copy.slot = variableDeclaration.slot;
+        copy.environmentSlot = variableDeclaration.environmentSlot;
+        return copy;
+    }
+
+    @Override
+    public AstNode visitVariableReference(Expr.VariableReference variableReference) {
+        return variableReference;
+    }
+
+    @Override
+    public AstNode visitAssignment(Expr.Assignment assignment) {
+        var expr = expr(assignment.expression);
+        if (expr == assignment.expression) {
+            return assignment;
+        }
+        var copy = new Expr.Assignment(assignment.name, expr);
+        copy.depth = assignment.depth;
+        copy.slot = assignment.slot;
+        return copy;
+    }
+
+    @Nullable
+    @Override
+    @SuppressWarnings("ReferenceEquality") // statements() returns the same list when nothing changed
+    public AstNode visitBlock(Stmt.Block block) {
+        var statements = statements(block.statements);
+        if (statements.isEmpty()) {
+            return null;
+        }
+        if (statements == block.statements) {
+            return block;
+        }
+        var copy = at(block, new Stmt.Block(statements));
+        copy.slots = block.slots;
+        copy.frameSize = block.frameSize;
+        return copy;
+    }
+
+    @Nullable
+    @Override
+    public AstNode visitIf(Stmt.If anIf) {
+        var condition = expr(anIf.condition);
+        if (condition instanceof Expr.Literal literal) {
+            if (Interpreter.isTruthy(literal.constant)) {
+                return stmt(anIf.thenBranch);
+            }
+            return anIf.elseBranch.map(this::stmt).orElse(null);
+        }
+        var thenBranch = branch(anIf.thenBranch);
+        var elseBranch = anIf.elseBranch.map(this::stmt);
+        if (condition == anIf.condition && thenBranch == anIf.thenBranch && elseBranch.equals(anIf.elseBranch)) {
+            return anIf;
+        }
+        if (elseBranch.isPresent()) {
+            return at(anIf, new Stmt.If(condition, thenBranch, elseBranch.get()));
+        }
+        return at(anIf, new Stmt.If(condition, thenBranch));
+    }
+
+    @Override
+    public AstNode visitLogical(Expr.Logical logical) {
+        var left = expr(logical.left);
+        var right = expr(logical.right);
+        if (left instanceof Expr.Literal literal) {
+            // A short-circuiting operand yields a boolean; otherwise the operator yields its right operand.
+            boolean truthy = Interpreter.isTruthy(literal.constant);
+            if (logical.operator.type() == TokenType.AND) {
+                return truthy ? right : literal(false);
+            }
+            return truthy ? literal(true) : right;
+        }
+        if (left == logical.left && right == logical.right) {
+            return logical;
+        }
+        return new Expr.Logical(left, logical.operator, right);
+    }
+
+    @Nullable
+    @Override
+    public AstNode visitWhile(Stmt.While aWhile) {
+        var condition = expr(aWhile.condition);
+        if (condition instanceof Expr.Literal literal && !Interpreter.isTruthy(literal.constant)) {
+            return null;
+        }
+        var body = branch(aWhile.body);
+        if (condition == aWhile.condition && body == aWhile.body) {
+            return aWhile;
+        }
+        return at(aWhile, new Stmt.While(condition, body));
+    }
+
+    @Override
+    public AstNode visitCall(Expr.Call call) {
+        var callee = expr(call.callee);
+        var arguments = ImmutableList.<Expr>builderWithExpectedSize(call.arguments.size());
+        boolean changed = callee != call.callee;
+        for (var argument : call.arguments) {
+            var optimized = expr(argument);
+            changed |= optimized != argument;
+            arguments.add(optimized);
+        }
+        if (!changed) {
+            return call;
+        }
+        return new Expr.Call(callee, call.paren, arguments.build());
+    }
+
+    @Override
+    @SuppressWarnings("ReferenceEquality") // statements() returns the same list when nothing changed
+    public AstNode visitFunction(Stmt.Function function) {
+        var body = statements(function.body);
+        if (body == function.body) {
+            return function;
+        }
+        var copy = at(function, new Stmt.Function(function.name, function.params, body));
+        copy.slot = function.slot;
+        copy.environmentSlot = function.environmentSlot;
+        copy.slots = function.slots;
+        copy.frameSize = function.frameSize;
+        copy.capturedParameters = function.capturedParameters;
+        return copy;
+    }
+
+    @Override
+    public AstNode visitReturn(Stmt.Return aReturn) {
+        var value = aReturn.value.map(this::expr);
+        if (value.equals(aReturn.value)) {
+            return aReturn;
+        }
+        return at(aReturn, new Stmt.Return(aReturn.keyword, value));
+    }
+
+    @Override
+    public AstNode visitClass(Stmt.Class aClass) {
+        var methods = ImmutableList.<Stmt.Function>builderWithExpectedSize(aClass.methods.size());
+        boolean changed = false;
+        for (var method : aClass.methods) {
+            var optimized = (Stmt.Function) visitFunction(method);
+            changed |= optimized != method;
+            methods.add(optimized);
+        }
+        if (!changed) {
+            return aClass;
+        }
+        var copy = at(aClass, new Stmt.Class(aClass.name, aClass.superclass, methods.build()));
+        copy.slot = aClass.slot;
+        copy.environmentSlot = aClass.environmentSlot;
+        return copy;
+    }
+
+    @Override
+    public AstNode visitGet(Expr.Get get) {
+        var object = expr(get.object);
+        if (object == get.object) {
+            return get;
+        }
+        return new Expr.Get(object, get.name);
+    }
+
+    @Override
+    public AstNode visitSet(Expr.Set set) {
+        var object = expr(set.object);
+        var value = expr(set.value);
+        if (object == set.object && value == set.value) {
+            return set;
+        }
+        return new Expr.Set(object, set.name, value);
+    }
+
+    @Override
+    public AstNode visitThis(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public AstNode visitSuper(Expr.Super aSuper) {
+        return aSuper;
+    }
+}
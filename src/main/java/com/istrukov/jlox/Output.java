@@ -0,0 +1,50 @@
+package com.istrukov.jlox;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Where a script's {@code print} statements go. Lines are collected in a large buffer and only written to the sink
+ * when the buffer fills up, when a run ends or fails, and when the script calls the {@code flush} builtin, rather than
+ * going through a line-flushed {@link java.io.PrintStream} on every statement.
+ *
+ * <p>The tasks of a script share its output, so each line is written as a whole.
+ */
+final class Output {
+    static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final Writer writer;
+
+    Output(Writer sink, int bufferSize) {
+        this.writer = new BufferedWriter(sink, bufferSize);
+    }
+
+    /**
+     * Returns output to {@link System#out}, the default for scripts and the command line.
+     */
+    static Output standard() {
+        return new Output(new OutputStreamWriter(System.out, Charset.defaultCharset()), DEFAULT_BUFFER_SIZE);
+    }
+
+    synchronized void println(String line) {
+        try {
+            writer.write(line);
+            writer.write(LINE_SEPARATOR);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -2,18 +2,39 @@ package com.istrukov.jlox;
 
 import com.google.common.collect.ImmutableList;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 class Parser {
     @SuppressWarnings("serial")
     private static class ParseError extends RuntimeException {
     }
 
-    private final ImmutableList<Token> tokens;
-    private int current = 0;
+    /**
+     * Source of further tokens; it is not called again once the current token is EOF.
+     */
+    private final Supplier<Token> tokens;
+    private final ErrorReporter reporter;
+    private Token current;
+    private Token previous;
 
-    Parser(ImmutableList<Token> tokens) {
+    Parser(List<Token> tokens, ErrorReporter reporter) {
+        this(tokens.iterator()::next, reporter);
+    }
+
+    /**
+     * Creates a parser that pulls tokens from the scanner as it goes instead of scanning the whole source up front.
+     */
+    Parser(Scanner scanner, ErrorReporter reporter) {
+        this(scanner::nextToken, reporter);
+    }
+
+    private Parser(Supplier<Token> tokens, ErrorReporter reporter) {
         this.tokens = tokens;
+        this.reporter = reporter;
+        this.current = tokens.get();
+        this.previous = current;
     }
 
     ImmutableList<Stmt> parse() {
@@ -24,6 +45,18 @@ class Parser {
         }
     }
 
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    /**
+     * Parses the next top-level declaration, or returns empty if it had a syntax error, which has been reported and
+     * skipped. Used to execute a script while it is being parsed.
+     */
+    Optional<Stmt> next() {
+        return declaration();
+    }
+
     private ImmutableList<Stmt> program() {
         var builder = ImmutableList.<Stmt>builder();
         while (!isAtEnd()) {
@@ -37,14 +70,15 @@ class Parser {
 
     private Optional<Stmt> declaration() {
         try {
+            var line = peek().line();
             if (match(TokenType.VAR)) {
-                return Optional.of(varDeclaration());
+                return Optional.of(at(line, varDeclaration()));
             }
             if (match(TokenType.FUN)) {
-                return Optional.of(functionDeclaration());
+                return Optional.of(at(line, functionDeclaration()));
             }
             if (match(TokenType.CLASS)) {
-                return Optional.of(classDeclaration());
+                return Optional.of(at(line, classDeclaration()));
             }
             return Optional.of(statement());
         } catch (ParseError error) {
@@ -95,7 +129,21 @@ class Parser {
         return new Stmt.Class(name, superclass, methods.build());
     }
 
+    private static <T extends Stmt> T at(int line, T stmt) {
+        stmt.line = line;
+        return stmt;
+    }
+
     private Stmt statement() {
+        var line = peek().line();
+        var stmt = statementBody();
+        if (stmt.line == 0) {
+            stmt.line = line;
+        }
+        return stmt;
+    }
+
+    private Stmt statementBody() {
         if (match(TokenType.PRINT)) {
             return printStatement();
         }
@@ -151,14 +199,15 @@ class Parser {
     }
 
     private Stmt forStatement() {
+        var line = previous().line();
         consume(TokenType.LEFT_PAREN, "expected ( after for");
         Optional<Stmt> init;
         if (match(TokenType.SEMICOLON)) {
             init = Optional.empty();
         } else if (match(TokenType.VAR)) {
-            init = Optional.of(varDeclaration());
+            init = Optional.of(at(line, varDeclaration()));
         } else {
-            init = Optional.of(expressionStatement());
+            init = Optional.of(at(line, expressionStatement()));
         }
         Optional<Expr> condition = check(TokenType.SEMICOLON) ? Optional.empty() : Optional.of(expression());
         consume(TokenType.SEMICOLON, "expected ; after loop condition");
@@ -166,12 +215,12 @@ class Parser {
         consume(TokenType.RIGHT_PAREN, "expected ) in for loop");
         var body = statement();
         if (increment.isPresent()) {
-            body = new Stmt.Block(ImmutableList.of(body, new Stmt.Expression(increment.get())));
+            body = at(line, new Stmt.Block(ImmutableList.of(body, at(line, new Stmt.Expression(increment.get())))));
         }
         if (condition.isEmpty()) {
             condition = Optional.of(new Expr.Literal(new Token.Literal(true)));
         }
-        var whileLoop = new Stmt.While(condition.get(), body);
+        var whileLoop = at(line, new Stmt.While(condition.get(), body));
         if (init.isPresent()) {
             return new Stmt.Block(ImmutableList.of(init.get(), whileLoop));
         } else {
@@ -362,9 +411,10 @@ class Parser {
 
     private Token advance() {
         if (!isAtEnd()) {
-            current++;
+            previous = current;
+            current = tokens.get();
         }
-        return previous();
+        return previous;
     }
 
     private boolean isAtEnd() {
@@ -372,11 +422,11 @@ class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private Token consume(TokenType type, String message) {
@@ -387,7 +437,7 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
@@ -0,0 +1,266 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Execution profiler for the tree-walking interpreter, enabled with {@code --profile}.
+ * <p>
+ * The interpreter reports every statement it executes and {@link LoxFunction} reports every call and return. Both
+ * modes count calls per function and executions per line and keep a calling-context tree of Lox functions. In the
+ * instrumenting mode every event reads the clock, which gives exact inclusive and exclusive times per function and
+ * self time per line. In the sampling mode only a background thread looks at the clock: it periodically records
+ * which function and line the program is in, so times are estimates but the program runs close to full speed.
+ */
+final class Profiler {
+    enum Mode {
+        INSTRUMENT,
+        SAMPLE
+    }
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 1;
+    private static final int REPORT_LINES = 20;
+
+    private static final class FunctionStats {
+        final String name;
+        long calls = 0;
+        /**
+         * Number of activations currently on the stack, so recursion does not count inclusive time twice.
+         */
+        int active = 0;
+        long inclusive = 0;
+        long exclusive = 0;
+
+        FunctionStats(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Node of the calling-context tree: one per distinct chain of calls from the script down to a function.
+     */
+    private static final class Node {
+        @Nullable
+        final Node parent;
+        @Nullable
+        final FunctionStats function;
+        final Map<FunctionStats, Node> children = new HashMap<>();
+        long self = 0;
+
+        Node(@Nullable Node parent, @Nullable FunctionStats function) {
+            this.parent = parent;
+            this.function = function;
+        }
+
+        String name() {
+            return function == null ? "<script>" : function.name;
+        }
+    }
+
+    private static final class Activation {
+        final FunctionStats function;
+        final long start;
+        final int callerLine;
+        long children = 0;
+
+        Activation(FunctionStats function, long start, int callerLine) {
+            this.function = function;
+            this.start = start;
+            this.callerLine = callerLine;
+        }
+    }
+
+    private final Mode mode;
+    private final Map<Stmt.Function, FunctionStats> functions = new HashMap<>();
+    private final List<Activation> stack = new ArrayList<>();
+    private final Node root = new Node(null, null);
+    // Read by the sampling thread.
+    private volatile Node current = root;
+    private volatile int line = 0;
+    private long[] lineCounts = new long[64];
+    /**
+     * Self time per line in nanoseconds, or samples per line; only written by the sampling thread when sampling.
+     */
+    private long[] lineTimes = new long[64];
+    private long lastTick;
+    @Nullable
+    private Thread sampler;
+
+    Profiler(Mode mode) {
+        this.mode = mode;
+    }
+
+    void start() {
+        lastTick = System.nanoTime();
+        if (mode == Mode.SAMPLE) {
+            var thread = new Thread(this::sample, "jlox-profiler");
+            thread.setDaemon(true);
+            thread.start();
+            sampler = thread;
+        }
+    }
+
+    void stop() {
+        if (sampler != null) {
+            sampler.interrupt();
+            try {
+                sampler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sampler = null;
+        } else {
+            tick(System.nanoTime());
+        }
+    }
+
+    void statement(int line) {
+        lineCounts = ensureLine(lineCounts, line);
+        lineCounts[line]++;
+        if (mode == Mode.INSTRUMENT) {
+            tick(System.nanoTime());
+        }
+        this.line = line;
+    }
+
+    void enter(Stmt.Function declaration) {
+        var function = functions.computeIfAbsent(declaration,
+                d -> new FunctionStats(String.format("%s:%d", d.name.lexeme(), d.name.line())));
+        long now = 0;
+        if (mode == Mode.INSTRUMENT) {
+            now = System.nanoTime();
+            tick(now);
+        }
+        function.calls++;
+        function.active++;
+        stack.add(new Activation(function, now, line));
+        var caller = current;
+        current = caller.children.computeIfAbsent(function, f -> new Node(caller, f));
+    }
+
+    void exit() {
+        var activation = stack.remove(stack.size() - 1);
+        var function = activation.function;
+        function.active--;
+        if (mode == Mode.INSTRUMENT) {
+            long now = System.nanoTime();
+            tick(now);
+            long elapsed = now - activation.start;
+            function.exclusive += elapsed - activation.children;
+            if (function.active == 0) {
+                function.inclusive += elapsed;
+            }
+            if (!stack.isEmpty()) {
+                stack.get(stack.size() - 1).children += elapsed;
+            }
+        }
+        current = Objects.requireNonNull(current.parent);
+        line = activation.callerLine;
+    }
+
+    /**
+     * Charges the time since the previous event to the current line and calling context.
+     */
+    private void tick(long now) {
+        long elapsed = now - lastTick;
+        lineTimes = ensureLine(lineTimes, line);
+        lineTimes[line] += elapsed;
+        current.self += elapsed;
+        lastTick = now;
+    }
+
+    private static long[] ensureLine(long[] perLine, int line) {
+        if (line < perLine.length) {
+            return perLine;
+        }
+        return Arrays.copyOf(perLine, Math.max(line + 1, perLine.length * 2));
+    }
+
+    private void sample() {
+        var seen = new ArrayList<FunctionStats>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            var node = current;
+            int sampledLine = line;
+            node.self++;
+            lineTimes = ensureLine(lineTimes, sampledLine);
+            lineTimes[sampledLine]++;
+            if (node.function != null) {
+                node.function.exclusive++;
+            }
+            seen.clear();
+            for (Node n = node; n != null && n.function != null; n = n.parent) {
+                if (!seen.contains(n.function)) {
+                    seen.add(n.function);
+                    n.function.inclusive++;
+                }
+            }
+        }
+    }
+
+    void report(PrintStream out) {
+        var unit = mode == Mode.INSTRUMENT ? "ms" : "samples";
+        out.printf("%-32s %10s %18s %18s%n", "function", "calls", "inclusive " + unit, "exclusive " + unit);
+        var sorted = new ArrayList<>(functions.values());
+        sorted.sort(Comparator.comparingLong((FunctionStats f) -> f.exclusive).reversed());
+        for (var function : sorted) {
+            out.printf("%-32s %10d %18s %18s%n", function.name, function.calls,
+                    format(function.inclusive), format(function.exclusive));
+        }
+        out.println();
+        out.printf("%-8s %12s %14s%n", "line", "executions", unit);
+        var lines = new ArrayList<Integer>();
+        for (int i = 1; i < Math.max(lineCounts.length, lineTimes.length); i++) {
+            if (count(lineCounts, i) > 0 || count(lineTimes, i) > 0) {
+                lines.add(i);
+            }
+        }
+        lines.sort(Comparator.comparingLong((Integer i) -> count(lineTimes, i)).reversed());
+        for (var i : lines.subList(0, Math.min(REPORT_LINES, lines.size()))) {
+            out.printf("%-8d %12d %14s%n", i, count(lineCounts, i), format(count(lineTimes, i)));
+        }
+    }
+
+    private static long count(long[] perLine, int line) {
+        return line < perLine.length ? perLine[line] : 0;
+    }
+
+    private String format(long value) {
+        if (mode == Mode.INSTRUMENT) {
+            return String.format("%.3f", value / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return Long.toString(value);
+    }
+
+    /**
+     * Writes the calling-context tree in the collapsed-stack format read by flame graph tools: one line per call
+     * chain with its self time in microseconds, or its sample count when sampling.
+     */
+    void writeCollapsedStacks(Writer out) throws IOException {
+        writeCollapsed(out, root, root.name());
+    }
+
+    private void writeCollapsed(Writer out, Node node, String path) throws IOException {
+        long weight = mode == Mode.INSTRUMENT ? TimeUnit.NANOSECONDS.toMicros(node.self) : node.self;
+        if (weight > 0) {
+            out.write(path + " " + weight + "\n");
+        }
+        for (var child : node.children.values()) {
+            writeCollapsed(out, child, path + ";" + child.name());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Polymorphic inline cache for the property access at one {@link Expr.Get} or {@link Expr.Set}. Each entry remembers
+ * what the access resolved to for instances of one {@link Shape}: the field slot, the method found on the class, or,
+ * for assignments that add a field, the shape the instance moves to. Sites that see more than {@link #MAX_ENTRIES}
+ * shapes are considered megamorphic and always take the slow path.
+ *
+ * <p>Classes created by one declaration share its root shape, and so their instances share shapes, while each class
+ * has methods of its own. A method entry therefore also remembers its class. When it misses because the instance's
+ * class differs, as it does on every run of a script, the entry is replaced rather than joined by another one, so
+ * the site does not turn megamorphic and does not keep classes of earlier runs alive.
+ *
+ * <p>The cache is shared by every run of the program. Entries are immutable and the entry array is replaced rather
+ * than modified, so a thread sees either the old or the new array; an update lost to a concurrent one only costs a
+ * later miss.
+ */
+final class PropertyCache {
+    private static final int MAX_ENTRIES = 4;
+
+    private static final class Entry {
+        final Shape shape;
+        final int slot;
+        @Nullable
+        final LoxClass klass;
+        @Nullable
+        final LoxFunction method;
+        final Shape target;
+
+        Entry(Shape shape, int slot, @Nullable LoxClass klass, @Nullable LoxFunction method, Shape target) {
+            this.shape = shape;
+            this.slot = slot;
+            this.klass = klass;
+            this.method = method;
+            this.target = target;
+        }
+    }
+
+    private volatile Entry[] entries = new Entry[0];
+    private volatile boolean megamorphic = false;
+
+    @Nullable
+    Object get(LoxInstance instance, Token name) {
+        var entry = lookup(instance, name);
+        if (entry.method != null) {
+            return entry.method.bind(instance);
+        }
+        return instance.getField(entry.slot);
+    }
+
+    /**
+     * Returns the method the property resolves to, or null if it resolves to a field, so that calls can invoke the
+     * method on the instance without binding it first.
+     */
+    @Nullable
+    LoxFunction method(LoxInstance instance, Token name) {
+        return lookup(instance, name).method;
+    }
+
+    private Entry lookup(LoxInstance instance, Token name) {
+        var shape = instance.shape;
+        for (var entry : entries) {
+            if (entry.shape == shape && (entry.method == null || entry.klass == instance.klass)) {
+                return entry;
+            }
+        }
+        Entry entry;
+        int slot = shape.slotOf(name.symbol());
+        if (slot >= 0) {
+            entry = new Entry(shape, slot, null, null, shape);
+        } else {
+            var method = instance.klass.findMethod(name.symbol());
+            if (method == null) {
+                throw new RuntimeError(name, String.format("Undefined property '%s'", name.lexeme()));
+            }
+            entry = new Entry(shape, -1, instance.klass, method, shape);
+        }
+        cache(entry);
+        return entry;
+    }
+
+    void set(LoxInstance instance, Token name, @Nullable Object value) {
+        var shape = instance.shape;
+        for (var entry : entries) {
+            if (entry.shape == shape) {
+                if (entry.target == shape) {
+                    instance.setField(entry.slot, value);
+                } else if (!instance.addField(shape, entry.target, value)) {
+                    instance.set(name, value);
+                }
+                return;
+            }
+        }
+        int slot = shape.slotOf(name.symbol());
+        if (slot >= 0) {
+            cache(new Entry(shape, slot, null, null, shape));
+            instance.setField(slot, value);
+            return;
+        }
+        var target = shape.withField(name.symbol());
+        cache(new Entry(shape, shape.size(), null, null, target));
+        if (!instance.addField(shape, target, value)) {
+            instance.set(name, value);
+        }
+    }
+
+    boolean isMegamorphic() {
+        return megamorphic;
+    }
+
+    int size() {
+        return entries.length;
+    }
+
+    private void cache(Entry entry) {
+        if (!megamorphic) {
+            add(entry);
+        }
+    }
+
+    private void add(Entry entry) {
+        var current = entries;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].shape == entry.shape) {
+                var updated = current.clone();
+                updated[i] = entry;
+                entries = updated;
+                return;
+            }
+        }
+        if (current.length == MAX_ENTRIES) {
+            megamorphic = true;
+            entries = new Entry[0];
+            return;
+        }
+        var updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = entry;
+        entries = updated;
+    }
+}
@@ -4,15 +4,35 @@ import com.google.common.collect.ImmutableList;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Objects;
+import java.util.function.IntConsumer;
+
+/**
+ * Resolves every local variable to where it lives at run time. Each local gets a slot in the frame of the function
+ * declaring it, which the interpreter keeps on its value stack. Locals that a nested function refers to are captured:
+ * they live in a heap {@link Environment} for their scope instead, so closures can keep them after the frame is gone.
+ * A scope whose locals are all uncaptured needs no environment at all.
+ *
+ * <p>Whether a local is captured is only known when its scope ends, so accesses are recorded and bound then.
+ */
 public class Resolver implements Visitor<Void> {
-    private final Interpreter interpreter;
-    private final List<Map<String, Boolean>> scopes = new ArrayList<>();
+    private final ErrorReporter reporter;
+    private final List<Scope> scopes = new ArrayList<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
+    /**
+     * Number of functions enclosing the code being resolved.
+     */
+    private int functionDepth = 0;
+    private int nextFrameSlot = 0;
+    /**
+     * Frame slots needed so far by the current function, or by top-level code outside functions.
+     */
+    private int frameSize = 0;
 
     private enum FunctionType {
         NONE,
@@ -27,38 +47,130 @@ public class Resolver implements Visitor<Void> {
         CLASS
     }
 
-    public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    private static class Scope {
+        @Nullable
+        final Scope enclosing;
+        final int functionDepth;
+        final int frameBase;
+        final Map<Symbol, Local> locals = new LinkedHashMap<>();
+        int environmentSize = 0;
+
+        Scope(@Nullable Scope enclosing, int functionDepth, int frameBase) {
+            this.enclosing = enclosing;
+            this.functionDepth = functionDepth;
+            this.frameBase = frameBase;
+        }
+    }
+
+    private static class Local {
+        final Scope scope;
+        final int frameSlot;
+        /**
+         * Records the environment slot in the declaring node once the local turns out to be captured.
+         */
+        final IntConsumer onCapture;
+        boolean defined = false;
+        boolean captured = false;
+        int environmentSlot = -1;
+        final List<Expr.VariableAccess> accesses = new ArrayList<>();
+        final List<Scope> accessScopes = new ArrayList<>();
+
+        Local(Scope scope, int frameSlot, IntConsumer onCapture) {
+            this.scope = scope;
+            this.frameSlot = frameSlot;
+            this.onCapture = onCapture;
+        }
+    }
+
+    Resolver(ErrorReporter reporter) {
+        this.reporter = reporter;
     }
 
     private void beginScope() {
-        scopes.add(new HashMap<>());
+        scopes.add(new Scope(scopes.isEmpty() ? null : lastScope(), functionDepth, nextFrameSlot));
+    }
+
+    /**
+     * Closes the innermost scope: gives its captured locals environment slots, binds every access to its locals and
+     * frees its frame slots for the next scope.
+     */
+    private Scope endScope() {
+        var scope = scopes.remove(scopes.size() - 1);
+        for (var local : scope.locals.values()) {
+            if (local.captured) {
+                local.environmentSlot = scope.environmentSize++;
+                local.onCapture.accept(local.environmentSlot);
+            }
+        }
+        for (var local : scope.locals.values()) {
+            for (int i = 0; i < local.accesses.size(); i++) {
+                bind(local.accesses.get(i), local.accessScopes.get(i), local);
+            }
+        }
+        nextFrameSlot = scope.frameBase;
+        return scope;
     }
 
-    private void endScope() {
-        scopes.remove(scopes.size() - 1);
+    private static void bind(Expr.VariableAccess access, Scope from, Local local) {
+        if (!local.captured) {
+            access.depth = Expr.VariableAccess.FRAME;
+            access.slot = local.frameSlot;
+            return;
+        }
+        // Only scopes that ended up with an environment are on the chain at run time.
+        int depth = 0;
+        for (var scope = from; scope != local.scope; scope = Objects.requireNonNull(scope.enclosing)) {
+            if (scope.environmentSize > 0) {
+                depth++;
+            }
+        }
+        access.depth = depth;
+        access.slot = local.environmentSlot;
     }
 
-    private Map<String, Boolean> lastScope() {
+    private Scope lastScope() {
         return scopes.get(scopes.size() - 1);
     }
 
-    private void declare(Token name) {
+    /**
+     * Declares a name in the innermost scope and returns its frame slot, or -1 for a global.
+     */
+    private int declare(Token name, IntConsumer onCapture) {
         if (scopes.isEmpty()) {
-            return;
+            return -1;
         }
         var scope = lastScope();
-        if (scope.containsKey(name.lexeme())) {
-            Lox.error(name, "variable with this name already declared in this scope");
+        var existing = scope.locals.get(name.symbol());
+        if (existing != null) {
+            reporter.error(name, "variable with this name already declared in this scope");
+            return existing.frameSlot;
         }
-        scope.put(name.lexeme(), false);
+        var local = new Local(scope, allocateFrameSlot(), onCapture);
+        scope.locals.put(name.symbol(), local);
+        return local.frameSlot;
+    }
+
+    private int allocateFrameSlot() {
+        int slot = nextFrameSlot++;
+        frameSize = Math.max(frameSize, nextFrameSlot);
+        return slot;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) {
             return;
         }
-        lastScope().put(name.lexeme(), true);
+        var local = lastScope().locals.get(name.symbol());
+        if (local != null) {
+            local.defined = true;
+        }
+    }
+
+    private Local defineImplicit(Symbol name, IntConsumer onCapture) {
+        var local = new Local(lastScope(), allocateFrameSlot(), onCapture);
+        local.defined = true;
+        lastScope().locals.put(name, local);
+        return local;
     }
 
     void resolve(ImmutableList<Stmt> stmts) {
@@ -67,14 +179,23 @@ public class Resolver implements Visitor<Void> {
         }
     }
 
+    void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
     private void resolve(AstNode node) {
         node.accept(this);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private void resolveLocal(Expr.VariableAccess expr, Symbol name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme())) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+            var local = scopes.get(i).locals.get(name);
+            if (local != null) {
+                if (local.scope.functionDepth != functionDepth) {
+                    local.captured = true;
+                }
+                local.accesses.add(expr);
+                local.accessScopes.add(lastScope());
                 return;
             }
         }
@@ -83,13 +204,35 @@ public class Resolver implements Visitor<Void> {
     private void resolveFunction(Stmt.Function function, FunctionType functionType) {
         var enclosing = currentFunction;
         currentFunction = functionType;
+        int enclosingNextFrameSlot = nextFrameSlot;
+        int enclosingFrameSize = frameSize;
+        functionDepth++;
+        nextFrameSlot = 0;
+        frameSize = 0;
         beginScope();
-        for (var param : function.params) {
-            declare(param);
+        int receiver = 0;
+        if (functionType == FunctionType.METHOD || functionType == FunctionType.INITIALIZER) {
+            receiver = 1;
+        }
+        var captured = new int[receiver + function.params.size()];
+        Arrays.fill(captured, -1);
+        function.capturedParameters = captured;
+        if (receiver == 1) {
+            // Methods receive 'this' in the first slot of their own frame.
+            defineImplicit(Symbol.THIS, slot -> captured[0] = slot);
+        }
+        for (int i = 0; i < function.params.size(); i++) {
+            int index = receiver + i;
+            var param = function.params.get(i);
+            declare(param, slot -> captured[index] = slot);
             define(param);
         }
         resolve(function.body);
-        endScope();
+        function.slots = endScope().environmentSize;
+        function.frameSize = frameSize;
+        functionDepth--;
+        nextFrameSlot = enclosingNextFrameSlot;
+        frameSize = enclosingFrameSize;
         currentFunction = enclosing;
     }
 
@@ -131,7 +274,7 @@ public class Resolver implements Visitor<Void> {
 
     @Override
     public Void visitVar(Stmt.VariableDeclaration variableDeclaration) {
-        declare(variableDeclaration.name);
+        variableDeclaration.slot = declare(variableDeclaration.name, slot -> variableDeclaration.environmentSlot = slot);
         variableDeclaration.initializer.ifPresent(this::resolve);
         define(variableDeclaration.name);
         return null;
@@ -140,19 +283,19 @@ public class Resolver implements Visitor<Void> {
     @Override
     public Void visitVariableReference(Expr.VariableReference variableReference) {
         if (!scopes.isEmpty()) {
-            var scope = scopes.get(scopes.size() - 1);
-            if (scope.containsKey(variableReference.name.lexeme()) && !scope.get(variableReference.name.lexeme())) {
-                Lox.error(variableReference.name, "variable initialized cannot contain its own name");
+            var local = lastScope().locals.get(variableReference.name.symbol());
+            if (local != null && !local.defined) {
+                reporter.error(variableReference.name, "variable initialized cannot contain its own name");
             }
         }
-        resolveLocal(variableReference, variableReference.name);
+        resolveLocal(variableReference, variableReference.name.symbol());
         return null;
     }
 
     @Override
     public Void visitAssignment(Expr.Assignment assignment) {
         resolve(assignment.expression);
-        resolveLocal(assignment, assignment.name);
+        resolveLocal(assignment, assignment.name.symbol());
         return null;
     }
 
@@ -160,7 +303,8 @@ public class Resolver implements Visitor<Void> {
     public Void visitBlock(Stmt.Block block) {
         beginScope();
         resolve(block.statements);
-        endScope();
+        block.slots = endScope().environmentSize;
+        block.frameSize = frameSize;
         return null;
     }
 
@@ -197,7 +341,7 @@ public class Resolver implements Visitor<Void> {
 
     @Override
     public Void visitFunction(Stmt.Function function) {
-        declare(function.name);
+        function.slot = declare(function.name, slot -> function.environmentSlot = slot);
         define(function.name);
         resolveFunction(function, FunctionType.FUNCTION);
         return null;
@@ -206,10 +350,10 @@ public class Resolver implements Visitor<Void> {
     @Override
     public Void visitReturn(Stmt.Return aReturn) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(aReturn.keyword, "cannot return from top-level code");
+            reporter.error(aReturn.keyword, "cannot return from top-level code");
         }
         if (currentFunction == FunctionType.INITIALIZER) {
-            Lox.error(aReturn.keyword, "cannot return from initializer");
+            reporter.error(aReturn.keyword, "cannot return from initializer");
         }
         aReturn.value.ifPresent(this::resolve);
         return null;
@@ -220,32 +364,30 @@ public class Resolver implements Visitor<Void> {
     public Void visitClass(Stmt.Class stmt) {
         var enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, slot -> stmt.environmentSlot = slot);
         define(stmt.name);
 
         if (stmt.superclass.isPresent()) {
-            if (stmt.name.lexeme().equals(stmt.superclass.get().name.lexeme())) {
-                Lox.error(stmt.superclass.get().name, "cannot inherit from itself");
+            if (stmt.name.symbol() == stmt.superclass.get().name.symbol()) {
+                reporter.error(stmt.superclass.get().name, "cannot inherit from itself");
             }
             currentClass = ClassType.SUBCLASS;
             resolve(stmt.superclass.get());
         }
 
         if (stmt.superclass.isPresent()) {
+            // The interpreter always gives 'super' an environment, since methods refer to it from their own frames.
             beginScope();
-            scopes.get(scopes.size() - 1).put("super", true);
+            defineImplicit(Symbol.SUPER, slot -> { }).captured = true;
         }
 
-        beginScope();
-        lastScope().put("this", true);
         for (var method : stmt.methods) {
             var declaration = FunctionType.METHOD;
-            if (method.name.lexeme().equals("init")) {
+            if (method.name.symbol() == Symbol.INIT) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
-        endScope();
 
         if (stmt.superclass.isPresent()) {
             endScope();
@@ -274,10 +416,10 @@ public class Resolver implements Visitor<Void> {
     @Override
     public Void visitThis(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "cannot use 'this' outside of class");
+            reporter.error(expr.keyword, "cannot use 'this' outside of class");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr, Symbol.THIS);
         return null;
     }
 
@@ -285,14 +427,15 @@ public class Resolver implements Visitor<Void> {
     @Override
     public Void visitSuper(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "cannot use 'super' outside of class");
+            reporter.error(expr.keyword, "cannot use 'super' outside of class");
             return null;
         }
         if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword, "cannot use 'super' in a class with no superclass");
+            reporter.error(expr.keyword, "cannot use 'super' in a class with no superclass");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr, Symbol.SUPER);
+        resolveLocal(expr.receiver, Symbol.THIS);
         return null;
     }
 }
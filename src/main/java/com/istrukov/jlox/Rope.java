@@ -0,0 +1,88 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+
+/**
+ * A string built by concatenation, whose characters are only copied into a {@link String} when something needs them,
+ * such as printing or comparing it. Appending to a long string in a loop then takes linear rather than quadratic time.
+ *
+ * <p>A Lox string is either a {@code String} or a rope, so code checks for a {@link CharSequence} where it expects
+ * one. Concatenations shorter than {@link #MIN_LENGTH} are copied right away, since a rope node would cost more than
+ * the copy. A rope is immutable apart from its flattened form, which is cached once computed; threads flattening the
+ * same rope at once just do the work twice.
+ */
+final class Rope implements CharSequence {
+    private static final int MIN_LENGTH = 256;
+
+    private final CharSequence left;
+    private final CharSequence right;
+    private final int length;
+    @Nullable
+    private volatile String flat = null;
+
+    private Rope(CharSequence left, CharSequence right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    /**
+     * Returns the concatenation of two Lox strings.
+     */
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        int length = left.length() + right.length();
+        if (length < 0) {
+            throw new OutOfMemoryError("string too long");
+        }
+        if (length < MIN_LENGTH) {
+            return left.toString().concat(right.toString());
+        }
+        return new Rope(left, right, length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    /**
+     * Flattens the rope. Ropes built in a loop nest as deep as the loop ran, so the tree is walked with an explicit
+     * stack rather than by recursion.
+     */
+    @Override
+    public String toString() {
+        var flat = this.flat;
+        if (flat != null) {
+            return flat;
+        }
+        var builder = new StringBuilder(length);
+        var pending = new ArrayDeque<CharSequence>();
+        CharSequence next = this;
+        while (true) {
+            if (next instanceof Rope rope && rope.flat == null) {
+                pending.push(rope.right);
+                next = rope.left;
+                continue;
+            }
+            builder.append(next.toString());
+            if (pending.isEmpty()) {
+                break;
+            }
+            next = pending.pop();
+        }
+        flat = builder.toString();
+        this.flat = flat;
+        return flat;
+    }
+}
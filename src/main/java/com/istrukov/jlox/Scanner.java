@@ -2,47 +2,79 @@ package com.istrukov.jlox;
 
 import com.google.common.collect.ImmutableMap;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
+/**
+ * Splits source into tokens. The scanner works on any {@link CharSequence}, including a {@link Utf8Source} over a
+ * mapped file, and never copies text it does not need: punctuation and keyword tokens only record their position,
+ * and identifiers share one interned lexeme per distinct name.
+ */
 public class Scanner {
-    private final String input;
-    private final List<Token> tokens = new ArrayList<>();
+    private static final Optional<Token.Literal> TRUE = Optional.of(new Token.Literal(true));
+    private static final Optional<Token.Literal> FALSE = Optional.of(new Token.Literal(false));
+    private static final Optional<Token.Literal> NIL = Optional.of(new Token.Literal());
+
+    private final CharSequence input;
+    private final Interner names;
+    private final ErrorReporter reporter;
+    @Nullable
+    private Token scanned = null;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final ImmutableMap<String, TokenType> keywords = ImmutableMap.<String, TokenType>builder()
-            .put("and", TokenType.AND)
-            .put("class", TokenType.CLASS)
-            .put("else", TokenType.ELSE)
-            .put("false", TokenType.FALSE)
-            .put("for", TokenType.FOR)
-            .put("fun", TokenType.FUN)
-            .put("if", TokenType.IF)
-            .put("nil", TokenType.NIL)
-            .put("or", TokenType.OR)
-            .put("print", TokenType.PRINT)
-            .put("return", TokenType.RETURN)
-            .put("super", TokenType.SUPER)
-            .put("this", TokenType.THIS)
-            .put("true", TokenType.TRUE)
-            .put("var", TokenType.VAR)
-            .put("while", TokenType.WHILE)
+    private static final ImmutableMap<Symbol, TokenType> keywords = ImmutableMap.<Symbol, TokenType>builder()
+            .put(Symbol.of("and"), TokenType.AND)
+            .put(Symbol.of("class"), TokenType.CLASS)
+            .put(Symbol.of("else"), TokenType.ELSE)
+            .put(Symbol.of("false"), TokenType.FALSE)
+            .put(Symbol.of("for"), TokenType.FOR)
+            .put(Symbol.of("fun"), TokenType.FUN)
+            .put(Symbol.of("if"), TokenType.IF)
+            .put(Symbol.of("nil"), TokenType.NIL)
+            .put(Symbol.of("or"), TokenType.OR)
+            .put(Symbol.of("print"), TokenType.PRINT)
+            .put(Symbol.of("return"), TokenType.RETURN)
+            .put(Symbol.of("super"), TokenType.SUPER)
+            .put(Symbol.of("this"), TokenType.THIS)
+            .put(Symbol.of("true"), TokenType.TRUE)
+            .put(Symbol.of("var"), TokenType.VAR)
+            .put(Symbol.of("while"), TokenType.WHILE)
             .build();
 
-    Scanner(String input) {
+    Scanner(CharSequence input, ErrorReporter reporter) {
         this.input = input;
+        this.names = new Interner(input);
+        this.reporter = reporter;
     }
 
     List<Token> scanTokens() {
+        var tokens = new ArrayList<Token>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type() != TokenType.EOF);
+        return tokens;
+    }
+
+    /**
+     * Scans and returns the next token, skipping whitespace and comments. Returns EOF at the end of the input.
+     */
+    Token nextToken() {
         while (!isAtEnd()) {
             start = current;
             scanToken();
+            var token = scanned;
+            if (token != null) {
+                scanned = null;
+                return token;
+            }
         }
-        tokens.add(new Token(TokenType.EOF, "", Optional.empty(), line));
-        return tokens;
+        return new Token(TokenType.EOF, "", Optional.empty(), line);
     }
 
     private void scanToken() {
@@ -115,25 +147,41 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     scanIdentifier();
                 } else {
-                    Lox.error(line, String.format("Unexpected character %s", c));
+                    scanUnexpected();
                 }
         }
     }
 
+    /**
+     * Reports a character no token starts with, once. A non-ASCII character spans several chars of a
+     * {@link Utf8Source}, one per byte, or two chars of a string if it is a surrogate pair, so the rest of it is
+     * consumed first and the message shows the decoded character.
+     */
+    private void scanUnexpected() {
+        if (input instanceof Utf8Source) {
+            for (int i = 0; i < 3 && isContinuationByte(peek()); i++) {
+                advance();
+            }
+        } else if (Character.isHighSurrogate(input.charAt(start)) && Character.isLowSurrogate(peek())) {
+            advance();
+        }
+        reporter.error(line, String.format("Unexpected character %s", input.subSequence(start, current)));
+    }
+
     private void scanIdentifier() {
         while (isAlphanumeric(peek())) {
             advance();
         }
-        var text = input.substring(start, current);
-        var type = keywords.getOrDefault(text, TokenType.IDENTIFIER);
+        var symbol = names.intern(start, current);
+        var type = keywords.getOrDefault(symbol, TokenType.IDENTIFIER);
         if (type == TokenType.TRUE) {
-            addToken(TokenType.TRUE, new Token.Literal(true));
+            emit(new Token(TokenType.TRUE, symbol, TRUE, line));
         } else if (type == TokenType.FALSE) {
-            addToken(TokenType.FALSE, new Token.Literal(false));
+            emit(new Token(TokenType.FALSE, symbol, FALSE, line));
         } else if (type == TokenType.NIL) {
-            addToken(TokenType.FALSE, new Token.Literal());
+            emit(new Token(TokenType.FALSE, symbol, NIL, line));
         } else {
-            addToken(type);
+            emit(new Token(type, symbol, Optional.empty(), line));
         }
     }
 
@@ -145,11 +193,11 @@ public class Scanner {
             advance();
         }
         if (isAtEnd()) {
-            Lox.error(line, "unterminated string");
+            reporter.error(line, "unterminated string");
             return;
         }
         advance(); // terminating '"'
-        var value = input.substring(start + 1, current - 1);
+        var value = input.subSequence(start + 1, current - 1).toString();
         addToken(TokenType.STRING, new Token.Literal(value));
     }
 
@@ -165,12 +213,34 @@ public class Scanner {
             }
         }
 
-        var value = Double.parseDouble(input.substring(start, current));
-        addToken(TokenType.NUMBER, new Token.Literal(value));
+        addToken(TokenType.NUMBER, new Token.Literal(parseNumber()));
+    }
+
+    /**
+     * Parses the number between {@code start} and {@code current}. Integers short enough to be exact in a double are
+     * accumulated directly, which avoids copying the digits out of the source.
+     */
+    private double parseNumber() {
+        if (current - start <= 15) {
+            long value = 0;
+            for (int i = start; i < current; i++) {
+                char c = input.charAt(i);
+                if (c == '.') {
+                    return Double.parseDouble(input.subSequence(start, current).toString());
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+        return Double.parseDouble(input.subSequence(start, current).toString());
     }
 
     private void scanComment() {
         while (peek() != '*' || peekNext() != '/') {
+            if (isAtEnd()) {
+                reporter.error(line, "unterminated comment");
+                return;
+            }
             if (peek() == '\n') line++;
             advance();
         }
@@ -211,13 +281,15 @@ public class Scanner {
     }
 
     private void addToken(TokenType type) {
-        String text = input.substring(start, current);
-        tokens.add(new Token(type, text, Optional.empty(), line));
+        emit(new Token(type, input, start, current, Optional.empty(), line));
     }
 
     private void addToken(TokenType type, Token.Literal literal) {
-        String text = input.substring(start, current);
-        tokens.add(new Token(type, text, Optional.of(literal), line));
+        emit(new Token(type, input, start, current, Optional.of(literal), line));
+    }
+
+    private void emit(Token token) {
+        scanned = token;
     }
 
     private boolean isAtEnd() {
@@ -235,4 +307,8 @@ public class Scanner {
     private static boolean isAlphanumeric(char c) {
         return isAlpha(c) || isDigit(c);
     }
+
+    private static boolean isContinuationByte(char c) {
+        return (c & 0xc0) == 0x80;
+    }
 }
@@ -0,0 +1,60 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * On-disk cache of resolved programs, so scripts that are run again skip scanning, parsing and resolving. Entries are
+ * named after the SHA-256 of the source and hold its {@link AstSerializer} form; they are memory-mapped when loaded.
+ * A damaged or outdated entry is treated as a miss and overwritten.
+ */
+public final class ScriptCache {
+    private final Path directory;
+
+    public ScriptCache(Path directory) {
+        this.directory = directory;
+    }
+
+    private Path entry(CharSequence source) {
+        var hash = source instanceof Utf8Source utf8
+                ? Hashing.sha256().hashBytes(utf8.bytes())
+                : Hashing.sha256().hashString(source, StandardCharsets.UTF_8);
+        return directory.resolve(hash + ".ast");
+    }
+
+    Optional<ImmutableList<Stmt>> load(CharSequence source) {
+        try (var channel = FileChannel.open(entry(source), StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return Optional.of(AstSerializer.deserialize(buffer));
+        } catch (IOException | IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores a program that compiled without errors. Failures are ignored, since the cache is only an optimization.
+     */
+    void store(CharSequence source, ImmutableList<Stmt> program) {
+        try {
+            Files.createDirectories(directory);
+            var temporary = Files.createTempFile(directory, "entry", ".tmp");
+            try {
+                Files.write(temporary, AstSerializer.serialize(program));
+                Files.move(temporary, entry(source), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            // Run uncached.
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Layout of a {@link LoxInstance}: which field lives in which slot of the instance's field array. Instances of a
+ * class start from the class's empty root shape and move along transitions as fields are added, so instances that
+ * gain the same fields in the same order share one shape. Shapes are compared by identity, which is what lets
+ * {@link PropertyCache} key its entries on them, so each transition must be created exactly once even when scripts
+ * sharing the class run on several threads.
+ */
+final class Shape {
+    private final ImmutableMap<Symbol, Integer> slots;
+    private final Map<Symbol, Shape> transitions = new ConcurrentHashMap<>();
+
+    private Shape(ImmutableMap<Symbol, Integer> slots) {
+        this.slots = slots;
+    }
+
+    static Shape root() {
+        return new Shape(ImmutableMap.of());
+    }
+
+    /**
+     * Returns the slot of the named field, or -1 if instances of this shape do not have it.
+     */
+    int slotOf(Symbol name) {
+        var slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the shape of an instance of this shape after adding the named field, which goes into slot
+     * {@link #size()}.
+     */
+    Shape withField(Symbol name) {
+        return transitions.computeIfAbsent(name,
+                n -> new Shape(ImmutableMap.<Symbol, Integer>builder().putAll(slots).put(n, slots.size()).build()));
+    }
+}
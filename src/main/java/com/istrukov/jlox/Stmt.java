@@ -6,6 +6,11 @@ import javax.annotation.Nullable;
 import java.util.Optional;
 
 abstract class Stmt extends AstNode {
+    /**
+     * Source line the statement starts on, set by the parser.
+     */
+    int line;
+
     static class Expression extends Stmt {
         final Expr expression;
 
@@ -37,6 +42,14 @@ abstract class Stmt extends AstNode {
     static class VariableDeclaration extends Stmt {
         final Token name;
         final Optional<Expr> initializer;
+        /**
+         * Frame slot of a local variable, or -1 for a global.
+         */
+        int slot = -1;
+        /**
+         * Environment slot of a local captured by a closure, or -1.
+         */
+        int environmentSlot = -1;
 
         VariableDeclaration(Token name, Optional<Expr> initializer) {
             this.name = name;
@@ -52,6 +65,14 @@ abstract class Stmt extends AstNode {
 
     static class Block extends Stmt {
         final ImmutableList<Stmt> statements;
+        /**
+         * Size of the environment for the block's captured locals; the block allocates none if this is 0.
+         */
+        int slots;
+        /**
+         * Frame slots in use by the end of the block, counting those of enclosing blocks.
+         */
+        int frameSize;
 
         Block(ImmutableList<Stmt> statements) {
             this.statements = statements;
@@ -108,6 +129,24 @@ abstract class Stmt extends AstNode {
         final Token name;
         final ImmutableList<Token> params;
         final ImmutableList<Stmt> body;
+        int slot = -1;
+        int environmentSlot = -1;
+        /**
+         * Size of the environment for captured parameters and top-level locals of the body; 0 if none are captured.
+         */
+        int slots;
+        /**
+         * Number of frame slots a call needs, starting with 'this' for methods and the parameters.
+         */
+        int frameSize;
+        /**
+         * Environment slot of 'this' and each parameter, in frame order, or -1 for those no closure captures.
+         */
+        int[] capturedParameters = new int[0];
+        /**
+         * Call counts and compiled code, for interpreters that run with the {@link Jit}.
+         */
+        final Jit jit = new Jit(this);
 
         Function(Token name, ImmutableList<Token> params, ImmutableList<Stmt> body) {
             this.name = name;
@@ -143,6 +182,13 @@ abstract class Stmt extends AstNode {
         final Token name;
         final Optional<Expr.VariableReference> superclass;
         final ImmutableList<Stmt.Function> methods;
+        int slot = -1;
+        int environmentSlot = -1;
+        /**
+         * Root shape of the instances of every class this declaration creates, so property caches keep hitting across
+         * runs of a script and across classes a nested declaration creates on each execution.
+         */
+        final Shape rootShape = Shape.root();
 
         Class(Token name, Optional<Expr.VariableReference> superclass, ImmutableList<Function> methods) {
             this.name = name;
@@ -0,0 +1,50 @@
+package com.istrukov.jlox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An interned name. There is exactly one symbol per distinct name, so symbols compare by identity and hash with a
+ * precomputed hash code, which makes them cheap keys for globals, fields and methods. The table is shared by every
+ * script in the JVM and never shrinks.
+ */
+public final class Symbol {
+    private static final ConcurrentMap<String, Symbol> table = new ConcurrentHashMap<>();
+
+    static final Symbol THIS = of("this");
+    static final Symbol SUPER = of("super");
+    static final Symbol INIT = of("init");
+
+    private final String name;
+    private final int hash;
+
+    private Symbol(String name) {
+        this.name = name;
+        this.hash = name.hashCode();
+    }
+
+    public static Symbol of(String name) {
+        var symbol = table.get(name);
+        if (symbol != null) {
+            return symbol;
+        }
+        return table.computeIfAbsent(name, Symbol::new);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Returns the hash of the name. Equality is identity, which is inherited from {@link Object}.
+     */
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -1,19 +1,97 @@
 package com.istrukov.jlox;
 
+import javax.annotation.Nullable;
+import java.util.Objects;
 import java.util.Optional;
 
-public record Token(
-        TokenType type,
-        String lexeme,
-        Optional<Literal> literal,
-        int line
-) {
+/**
+ * A token of Lox source. Tokens made by the {@link Scanner} only remember where their text is in the source and
+ * materialize the lexeme the first time it is asked for, which for most punctuation, numbers and strings is never.
+ */
+public final class Token {
+    private final TokenType type;
+    @Nullable
+    private String lexeme;
+    @Nullable
+    private Symbol symbol;
+    @Nullable
+    private final CharSequence source;
+    private final int start;
+    private final int end;
+    private final Optional<Literal> literal;
+    private final int line;
+
+    public Token(TokenType type, String lexeme, Optional<Literal> literal, int line) {
+        this.type = type;
+        this.lexeme = lexeme;
+        this.source = null;
+        this.start = 0;
+        this.end = 0;
+        this.literal = literal;
+        this.line = line;
+    }
+
+    /**
+     * Creates a token for a name that has already been interned.
+     */
+    Token(TokenType type, Symbol symbol, Optional<Literal> literal, int line) {
+        this(type, symbol.name(), literal, line);
+        this.symbol = symbol;
+    }
+
+    /**
+     * Creates a token whose lexeme is the {@code [start, end)} range of {@code source}.
+     */
+    Token(TokenType type, CharSequence source, int start, int end, Optional<Literal> literal, int line) {
+        this.type = type;
+        this.lexeme = null;
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.literal = literal;
+        this.line = line;
+    }
+
+    public TokenType type() {
+        return type;
+    }
+
+    public String lexeme() {
+        var text = lexeme;
+        if (text == null) {
+            // Racing threads compute equal strings, so publishing either is fine.
+            text = Objects.requireNonNull(source).subSequence(start, end).toString();
+            lexeme = text;
+        }
+        return text;
+    }
+
+    /**
+     * Returns the lexeme as a symbol, which is how the runtime looks up names.
+     */
+    public Symbol symbol() {
+        var interned = symbol;
+        if (interned == null) {
+            interned = Symbol.of(lexeme());
+            symbol = interned;
+        }
+        return interned;
+    }
+
+    public Optional<Literal> literal() {
+        return literal;
+    }
+
+    public int line() {
+        return line;
+    }
+
     @Override
     public String toString() {
         if (literal.isPresent()) {
-            return String.format("%s %s %s", type, lexeme, literal.get());
+            return String.format("%s %s %s", type, lexeme(), literal.get());
         } else {
-            return String.format("%s %s", type, lexeme);
+            return String.format("%s %s", type, lexeme());
         }
     }
 
@@ -0,0 +1,276 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Infers the {@link Expr.Type} of every expression in a resolved program, and starts the operators whose operand types
+ * it knows out specialized for them, see {@link BinaryNode#forTypes}.
+ *
+ * <p>The inference follows locals the resolver kept in call frames through the code: each store sets the type of its
+ * frame slot, branches join the slot types where they meet, and loops are walked again until the types at their
+ * start stop changing. Only the function declaring such a local can write it, so calls leave what is known intact.
+ * Globals, captured locals, parameters and the results of calls and property reads may hold anything and are
+ * {@link Expr.Type#UNKNOWN}.
+ *
+ * <p>Like the {@link Optimizer}, the pass runs after the {@link Resolver}, on the program an engine is about to run.
+ */
+final class TypeInferrer implements Visitor<Expr.Type> {
+    /**
+     * Types of the frame slots of the function being inferred, or of top-level code.
+     */
+    private Expr.Type[] frame = new Expr.Type[0];
+
+    void infer(ImmutableList<Stmt> program) {
+        for (var stmt : program) {
+            infer(stmt);
+        }
+    }
+
+    private void infer(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private Expr.Type type(Expr expr) {
+        var type = Objects.requireNonNull(expr.accept(this));
+        expr.type = type;
+        return type;
+    }
+
+    private Expr.Type slot(int slot) {
+        return slot < frame.length ? frame[slot] : Expr.Type.UNKNOWN;
+    }
+
+    private void store(int slot, Expr.Type type) {
+        if (slot >= frame.length) {
+            int length = frame.length;
+            frame = Arrays.copyOf(frame, slot + 1);
+            Arrays.fill(frame, length, slot, Expr.Type.UNKNOWN);
+        }
+        frame[slot] = type;
+    }
+
+    /**
+     * Returns the slot types after either of two paths, a slot keeping its type only if both agree on it.
+     */
+    private static Expr.Type[] join(Expr.Type[] first, Expr.Type[] second) {
+        var joined = new Expr.Type[Math.max(first.length, second.length)];
+        for (int i = 0; i < joined.length; i++) {
+            boolean same = i < first.length && i < second.length && first[i] == second[i];
+            joined[i] = same ? first[i] : Expr.Type.UNKNOWN;
+        }
+        return joined;
+    }
+
+    private void function(Stmt.Function function, boolean method) {
+        var enclosing = frame;
+        frame = new Expr.Type[function.frameSize];
+        Arrays.fill(frame, Expr.Type.UNKNOWN);
+        if (method && function.capturedParameters[0] < 0) {
+            store(0, Expr.Type.INSTANCE);
+        }
+        infer(function.body);
+        frame = enclosing;
+    }
+
+    @Override
+    public Expr.Type visitBinary(Expr.Binary binary) {
+        var left = type(binary.left);
+        var right = type(binary.right);
+        binary.node = BinaryNode.forTypes(binary.operator.type(), left, right);
+        switch (binary.operator.type()) {
+            case PLUS:
+                // Anything but a number plus a number fails, and likewise for strings.
+                if (left == Expr.Type.NUMBER || right == Expr.Type.NUMBER) {
+                    return Expr.Type.NUMBER;
+                }
+                if (left == Expr.Type.STRING || right == Expr.Type.STRING) {
+                    return Expr.Type.STRING;
+                }
+                return Expr.Type.UNKNOWN;
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return Expr.Type.NUMBER;
+            default:
+                return Expr.Type.BOOLEAN;
+        }
+    }
+
+    @Override
+    public Expr.Type visitUnary(Expr.Unary unary) {
+        var operand = type(unary.right);
+        unary.node = UnaryNode.forType(unary.operator.type(), operand);
+        return unary.operator.type() == TokenType.MINUS ? Expr.Type.NUMBER : Expr.Type.BOOLEAN;
+    }
+
+    @Override
+    public Expr.Type visitGrouping(Expr.Grouping grouping) {
+        return type(grouping.expression);
+    }
+
+    @Override
+    public Expr.Type visitLiteral(Expr.Literal literal) {
+        if (literal.constant instanceof Double) {
+            return Expr.Type.NUMBER;
+        }
+        if (literal.constant instanceof String) {
+            return Expr.Type.STRING;
+        }
+        if (literal.constant instanceof Boolean) {
+            return Expr.Type.BOOLEAN;
+        }
+        return Expr.Type.NIL;
+    }
+
+    @Nullable
+    @Override
+    public Expr.Type visitExpression(Stmt.Expression expression) {
+        type(expression.expression);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Expr.Type visitPrint(Stmt.Print print) {
+        type(print.expression);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Expr.Type visitVar(Stmt.VariableDeclaration variableDeclaration) {
+        var type = variableDeclaration.initializer.map(this::type).orElse(Expr.Type.NIL);
+        if (variableDeclaration.slot >= 0 && variableDeclaration.environmentSlot < 0) {
+            store(variableDeclaration.slot, type);
+        }
+        return null;
+    }
+
+    @Override
+    public Expr.Type visitVariableReference(Expr.VariableReference variableReference) {
+        return variableReference.isInFrame() ? slot(variableReference.slot) : Expr.Type.UNKNOWN;
+    }
+
+    @Override
+    public Expr.Type visitAssignment(Expr.Assignment assignment) {
+        var type = type(assignment.expression);
+        if (assignment.isInFrame()) {
+            store(assignment.slot, type);
+        }
+        return type;
+    }
+
+    @Nullable
+    @Override
+    public Expr.Type visitBlock(Stmt.Block block) {
+        infer(block.statements);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Expr.Type visitIf(Stmt.If anIf) {
+        type(anIf.condition);
+        var otherwise = frame.clone();
+        infer(anIf.thenBranch);
+        var then = frame;
+        frame = otherwise;
+        anIf.elseBranch.ifPresent(this::infer);
+        frame = join(then, frame);
+        return null;
+    }
+
+    @Override
+    public Expr.Type visitLogical(Expr.Logical logical) {
+        type(logical.left);
+        var shortCircuited = frame.clone();
+        var right = type(logical.right);
+        frame = join(shortCircuited, frame);
+        // 'and' yields false and 'or' true when they short-circuit, and the right operand's value otherwise.
+        return right == Expr.Type.BOOLEAN ? Expr.Type.BOOLEAN : Expr.Type.UNKNOWN;
+    }
+
+    @Nullable
+    @Override
+    public Expr.Type visitWhile(Stmt.While aWhile) {
+        var start = frame.clone();
+        while (true) {
+            frame = start.clone();
+            type(aWhile.condition);
+            var exit = frame.clone();
+            infer(aWhile.body);
+            var next = join(start, frame);
+            if (Arrays.equals(next, start)) {
+                frame = exit;
+                return null;
+            }
+            start = next;
+        }
+    }
+
+    @Override
+    public Expr.Type visitCall(Expr.Call call) {
+        type(call.callee);
+        for (var argument : call.arguments) {
+            type(argument);
+        }
+        return Expr.Type.UNKNOWN;
+    }
+
+    @Nullable
+    @Override
+    public Expr.Type visitFunction(Stmt.Function function) {
+        if (function.slot >= 0 && function.environmentSlot < 0) {
+            store(function.slot, Expr.Type.UNKNOWN);
+        }
+        function(function, false);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Expr.Type visitReturn(Stmt.Return aReturn) {
+        aReturn.value.ifPresent(this::type);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Expr.Type visitClass(Stmt.Class aClass) {
+        aClass.superclass.ifPresent(this::type);
+        if (aClass.slot >= 0 && aClass.environmentSlot < 0) {
+            store(aClass.slot, Expr.Type.UNKNOWN);
+        }
+        for (var method : aClass.methods) {
+            function(method, true);
+        }
+        return null;
+    }
+
+    @Override
+    public Expr.Type visitGet(Expr.Get get) {
+        type(get.object);
+        return Expr.Type.UNKNOWN;
+    }
+
+    @Override
+    public Expr.Type visitSet(Expr.Set set) {
+        type(set.object);
+        return type(set.value);
+    }
+
+    @Override
+    public Expr.Type visitThis(Expr.This expr) {
+        return Expr.Type.INSTANCE;
+    }
+
+    @Override
+    public Expr.Type visitSuper(Expr.Super expr) {
+        type(expr.receiver);
+        return Expr.Type.UNKNOWN;
+    }
+}
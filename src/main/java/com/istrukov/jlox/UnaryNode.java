@@ -0,0 +1,75 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+
+/**
+ * Self-specializing implementation of a unary operator, see {@link BinaryNode}.
+ */
+abstract class UnaryNode {
+    static final UnaryNode UNINITIALIZED = new UnaryNode() {
+        @Nullable
+        @Override
+        Object execute(Expr.Unary unary, @Nullable Object operand) {
+            UnaryNode specialized;
+            if (unary.operator.type() == TokenType.BANG) {
+                specialized = NOT;
+            } else if (unary.operator.type() == TokenType.MINUS && operand instanceof Double) {
+                specialized = NUMBER_NEGATE;
+            } else {
+                specialized = GENERIC;
+            }
+            unary.node = specialized;
+            return specialized.execute(unary, operand);
+        }
+    };
+
+    static final UnaryNode NUMBER_NEGATE = new UnaryNode() {
+        @Nullable
+        @Override
+        Object execute(Expr.Unary unary, @Nullable Object operand) {
+            if (operand instanceof Double) {
+                return -(double) operand;
+            }
+            unary.node = GENERIC;
+            return GENERIC.execute(unary, operand);
+        }
+    };
+
+    static final UnaryNode NOT = new UnaryNode() {
+        @Override
+        Object execute(Expr.Unary unary, @Nullable Object operand) {
+            return !Interpreter.isTruthy(operand);
+        }
+    };
+
+    static final UnaryNode GENERIC = new UnaryNode() {
+        @Nullable
+        @Override
+        Object execute(Expr.Unary unary, @Nullable Object operand) {
+            switch (unary.operator.type()) {
+                case MINUS:
+                    if (!(operand instanceof Double)) {
+                        throw new RuntimeError(unary.operator, "operand must be a number");
+                    }
+                    return -(double) operand;
+                case BANG:
+                    return !Interpreter.isTruthy(operand);
+                default:
+                    return null;
+            }
+        }
+    };
+
+    @Nullable
+    abstract Object execute(Expr.Unary unary, @Nullable Object operand);
+
+    /**
+     * Returns the node for an operand of a type known before the program runs, see {@link BinaryNode#forTypes}.
+     */
+    static UnaryNode forType(TokenType operator, Expr.Type operand) {
+        if (operator == TokenType.BANG) {
+            return NOT;
+        }
+        return operand == Expr.Type.NUMBER ? NUMBER_NEGATE : UNINITIALIZED;
+    }
+}
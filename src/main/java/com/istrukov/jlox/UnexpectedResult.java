@@ -0,0 +1,19 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+
+/**
+ * Thrown by {@link Interpreter#evalDouble} when an expression expected to produce a number produces something else.
+ * Carries the already computed value so that the caller can finish on the generic path without evaluating the
+ * expression a second time.
+ */
+@SuppressWarnings("serial")
+class UnexpectedResult extends RuntimeException {
+    @Nullable
+    final Object value;
+
+    UnexpectedResult(@Nullable Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
@@ -0,0 +1,59 @@
+package com.istrukov.jlox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * UTF-8 encoded source viewed as a {@link CharSequence} without decoding it: every byte is one char. The scanner only
+ * looks for ASCII characters, which never occur inside multi-byte UTF-8 sequences, so it can run directly over the
+ * bytes. Text the scanner extracts goes through {@link #toString}, which decodes it properly.
+ */
+final class Utf8Source implements CharSequence {
+    private final ByteBuffer bytes;
+
+    Utf8Source(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Maps a file into memory; the mapping stays valid after the file is closed. Pipes and devices such as
+     * {@code /dev/stdin} report a size of zero, so anything but a regular file is read whole instead.
+     */
+    static Utf8Source map(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return new Utf8Source(ByteBuffer.wrap(Files.readAllBytes(path)));
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new Utf8Source(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    ByteBuffer bytes() {
+        return bytes.duplicate();
+    }
+
+    @Override
+    public int length() {
+        return bytes.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes.get(index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new Utf8Source(bytes.slice(start, end - start));
+    }
+
+    @Override
+    public String toString() {
+        return StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+    }
+}
@@ -0,0 +1,498 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Stack-based interpreter for bytecode produced by {@link Compiler}. Globals persist across calls to
+ * {@link #interpret}, so one instance can back an interactive session.
+ */
+class VirtualMachine {
+    private static final int FRAMES_MAX = 1024;
+    private static final int STACK_MAX = FRAMES_MAX * 256;
+
+    private static class CallFrame {
+        final VmClosure closure;
+        final int base;
+        int ip = 0;
+
+        CallFrame(VmClosure closure, int base) {
+            this.closure = closure;
+            this.base = base;
+        }
+    }
+
+    /**
+     * Raised by instruction helpers; the dispatch loop attaches the source line of the failing instruction.
+     */
+    @SuppressWarnings("serial")
+    private static class VmError extends RuntimeException {
+        VmError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final Object[] stack = new Object[STACK_MAX];
+    private int stackTop = 0;
+    private final CallFrame[] frames = new CallFrame[FRAMES_MAX];
+    private int frameCount = 0;
+    private final Map<String, Object> globals = new HashMap<>();
+    private final Output output;
+    @Nullable
+    private VmClosure.Upvalue openUpvalues = null;
+
+    VirtualMachine() {
+        this(Output.standard());
+    }
+
+    VirtualMachine(Output output) {
+        this.output = output;
+        globals.put("clock", Builtin.clock);
+        globals.put("flush", Builtin.flush(output));
+    }
+
+    /**
+     * Runs a compiled script, throwing {@link RuntimeError} if it fails.
+     */
+    void interpret(VmFunction script) {
+        var closure = new VmClosure(script);
+        stack[stackTop++] = closure;
+        try {
+            call(closure, 0);
+            run();
+        } catch (VmError error) {
+            throw new RuntimeError(0, Objects.requireNonNull(error.getMessage()));
+        } finally {
+            output.flush();
+            Arrays.fill(stack, 0, stackTop, null);
+            stackTop = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void run() {
+        var frame = frames[frameCount - 1];
+        var code = frame.closure.function.chunk.code;
+        var constants = frame.closure.function.chunk.constants;
+        int base = frame.base;
+        int ip = frame.ip;
+        while (true) {
+            int start = ip;
+            try {
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT:
+                        stack[stackTop++] = constants[readShort(code, ip)];
+                        ip += 2;
+                        break;
+                    case OpCode.NIL:
+                        stack[stackTop++] = null;
+                        break;
+                    case OpCode.TRUE:
+                        stack[stackTop++] = true;
+                        break;
+                    case OpCode.FALSE:
+                        stack[stackTop++] = false;
+                        break;
+                    case OpCode.POP:
+                        stack[--stackTop] = null;
+                        break;
+                    case OpCode.GET_LOCAL:
+                        stack[stackTop++] = stack[base + Byte.toUnsignedInt(code[ip++])];
+                        break;
+                    case OpCode.SET_LOCAL:
+                        stack[base + Byte.toUnsignedInt(code[ip++])] = stack[stackTop - 1];
+                        break;
+                    case OpCode.GET_GLOBAL: {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        var value = globals.get(name);
+                        if (value == null && !globals.containsKey(name)) {
+                            throw new VmError(String.format("undefined variable %s", name));
+                        }
+                        stack[stackTop++] = value;
+                        break;
+                    }
+                    case OpCode.DEFINE_GLOBAL: {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        globals.put(name, stack[--stackTop]);
+                        stack[stackTop] = null;
+                        break;
+                    }
+                    case OpCode.SET_GLOBAL: {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!globals.containsKey(name)) {
+                            throw new VmError(String.format("undefined variable %s", name));
+                        }
+                        globals.put(name, stack[stackTop - 1]);
+                        break;
+                    }
+                    case OpCode.GET_UPVALUE:
+                        stack[stackTop++] = frame.closure.upvalues[Byte.toUnsignedInt(code[ip++])].get();
+                        break;
+                    case OpCode.SET_UPVALUE:
+                        frame.closure.upvalues[Byte.toUnsignedInt(code[ip++])].set(stack[stackTop - 1]);
+                        break;
+                    case OpCode.GET_PROPERTY: {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        var instance = asInstance(stack[stackTop - 1]);
+                        var value = instance.fields.get(name);
+                        if (value != null || instance.fields.containsKey(name)) {
+                            stack[stackTop - 1] = value;
+                        } else {
+                            stack[stackTop - 1] = bindMethod(instance, instance.klass, name, "Undefined property '%s'");
+                        }
+                        break;
+                    }
+                    case OpCode.SET_PROPERTY: {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        var instance = asInstance(stack[stackTop - 2]);
+                        var value = stack[--stackTop];
+                        instance.fields.put(name, value);
+                        stack[stackTop] = null;
+                        stack[stackTop - 1] = value;
+                        break;
+                    }
+                    case OpCode.GET_SUPER: {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        var superclass = (VmClass) Objects.requireNonNull(stack[--stackTop]);
+                        var receiver = (VmInstance) Objects.requireNonNull(stack[stackTop - 1]);
+                        stack[stackTop] = null;
+                        stack[stackTop - 1] = bindMethod(receiver, superclass, name, "undefined property '%s'");
+                        break;
+                    }
+                    case OpCode.EQUAL: {
+                        var right = stack[--stackTop];
+                        stack[stackTop] = null;
+                        stack[stackTop - 1] = Interpreter.isEqual(stack[stackTop - 1], right);
+                        break;
+                    }
+                    case OpCode.GREATER: {
+                        var right = stack[--stackTop];
+                        var left = stack[stackTop - 1];
+                        checkNumberOperands(left, right);
+                        stack[stackTop] = null;
+                        stack[stackTop - 1] = (double) left > (double) right;
+                        break;
+                    }
+                    case OpCode.GREATER_EQUAL: {
+                        var right = stack[--stackTop];
+                        var left = stack[stackTop - 1];
+                        checkNumberOperands(left, right);
+                        stack[stackTop] = null;
+                        stack[stackTop - 1] = (double) left >= (double) right;
+                        break;
+                    }
+                    case OpCode.LESS: {
+                        var right = stack[--stackTop];
+                        var left = stack[stackTop - 1];
+                        checkNumberOperands(left, right);
+                        stack[stackTop] = null;
+                        stack[stackTop - 1] = (double) left < (double) right;
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL: {
+                        var right = stack[--stackTop];
+                        var left = stack[stackTop - 1];
+                        checkNumberOperands(left, right);
+                        stack[stackTop] = null;
+                        stack[stackTop - 1] = (double) left <= (double) right;
+                        break;
+                    }
+                    case OpCode.ADD: {
+                        var right = stack[--stackTop];
+                        var left = stack[stackTop - 1];
+                        stack[stackTop] = null;
+                        if (left instanceof Double && right instanceof Double) {
+                            stack[stackTop - 1] = (double) left + (double) right;
+                        } else if (left instanceof CharSequence l && right instanceof CharSequence r) {
+                            stack[stackTop - 1] = Rope.concat(l, r);
+                        } else {
+                            throw new VmError("operands must be either two numbers or two strings");
+                        }
+                        break;
+                    }
+                    case OpCode.SUBTRACT: {
+                        var right = stack[--stackTop];
+                        var left = stack[stackTop - 1];
+                        checkNumberOperands(left, right);
+                        stack[stackTop] = null;
+                        stack[stackTop - 1] = (double) left - (double) right;
+                        break;
+                    }
+                    case OpCode.MULTIPLY: {
+                        var right = stack[--stackTop];
+                        var left = stack[stackTop - 1];
+                        checkNumberOperands(left, right);
+                        stack[stackTop] = null;
+                        stack[stackTop - 1] = (double) left * (double) right;
+                        break;
+                    }
+                    case OpCode.DIVIDE: {
+                        var right = stack[--stackTop];
+                        var left = stack[stackTop - 1];
+                        checkNumberOperands(left, right);
+                        stack[stackTop] = null;
+                        stack[stackTop - 1] = (double) left / (double) right;
+                        break;
+                    }
+                    case OpCode.NOT:
+                        stack[stackTop - 1] = !Interpreter.isTruthy(stack[stackTop - 1]);
+                        break;
+                    case OpCode.NEGATE: {
+                        var operand = stack[stackTop - 1];
+                        if (!(operand instanceof Double)) {
+                            throw new VmError("operand must be a number");
+                        }
+                        stack[stackTop - 1] = -(double) operand;
+                        break;
+                    }
+                    case OpCode.PRINT:
+                        output.println(Interpreter.stringify(stack[--stackTop]));
+                        stack[stackTop] = null;
+                        break;
+                    case OpCode.JUMP:
+                        ip += readShort(code, ip) + 2;
+                        break;
+                    case OpCode.JUMP_IF_FALSE:
+                        if (Interpreter.isTruthy(stack[stackTop - 1])) {
+                            ip += 2;
+                        } else {
+                            ip += readShort(code, ip) + 2;
+                        }
+                        break;
+                    case OpCode.LOOP:
+                        ip -= readShort(code, ip) - 2;
+                        break;
+                    case OpCode.CALL: {
+                        int argCount = Byte.toUnsignedInt(code[ip++]);
+                        frame.ip = ip;
+                        callValue(stack[stackTop - argCount - 1], argCount);
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        base = frame.base;
+                        ip = frame.ip;
+                        break;
+                    }
+                    case OpCode.INVOKE: {
+                        var name = (String) constants[readShort(code, ip)];
+                        int argCount = Byte.toUnsignedInt(code[ip + 2]);
+                        ip += 3;
+                        frame.ip = ip;
+                        invoke(name, argCount);
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        base = frame.base;
+                        ip = frame.ip;
+                        break;
+                    }
+                    case OpCode.SUPER_INVOKE: {
+                        var name = (String) constants[readShort(code, ip)];
+                        int argCount = Byte.toUnsignedInt(code[ip + 2]);
+                        ip += 3;
+                        frame.ip = ip;
+                        var superclass = (VmClass) Objects.requireNonNull(stack[--stackTop]);
+                        stack[stackTop] = null;
+                        invokeFromClass(superclass, name, argCount, "undefined property '%s'");
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        base = frame.base;
+                        ip = frame.ip;
+                        break;
+                    }
+                    case OpCode.CLOSURE: {
+                        var function = (VmFunction) constants[readShort(code, ip)];
+                        ip += 2;
+                        var closure = new VmClosure(function);
+                        for (int i = 0; i < function.upvalueCount; i++) {
+                            boolean isLocal = code[ip++] != 0;
+                            int index = Byte.toUnsignedInt(code[ip++]);
+                            if (isLocal) {
+                                closure.upvalues[i] = captureUpvalue(base + index);
+                            } else {
+                                closure.upvalues[i] = frame.closure.upvalues[index];
+                            }
+                        }
+                        stack[stackTop++] = closure;
+                        break;
+                    }
+                    case OpCode.CLOSE_UPVALUE:
+                        closeUpvalues(stackTop - 1);
+                        stack[--stackTop] = null;
+                        break;
+                    case OpCode.RETURN: {
+                        var result = stack[--stackTop];
+                        closeUpvalues(base);
+                        frameCount--;
+                        Arrays.fill(stack, base, stackTop + 1, null);
+                        stackTop = base;
+                        if (frameCount == 0) {
+                            return;
+                        }
+                        stack[stackTop++] = result;
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        base = frame.base;
+                        ip = frame.ip;
+                        break;
+                    }
+                    case OpCode.CLASS:
+                        stack[stackTop++] = new VmClass((String) constants[readShort(code, ip)]);
+                        ip += 2;
+                        break;
+                    case OpCode.INHERIT: {
+                        var superclass = stack[stackTop - 2];
+                        if (!(superclass instanceof VmClass)) {
+                            throw new VmError("superclass must be a class");
+                        }
+                        var subclass = (VmClass) Objects.requireNonNull(stack[--stackTop]);
+                        stack[stackTop] = null;
+                        subclass.methods.putAll(((VmClass) superclass).methods);
+                        break;
+                    }
+                    case OpCode.METHOD: {
+                        var name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        var method = (VmClosure) Objects.requireNonNull(stack[--stackTop]);
+                        stack[stackTop] = null;
+                        ((VmClass) Objects.requireNonNull(stack[stackTop - 1])).methods.put(name, method);
+                        break;
+                    }
+                    default:
+                        throw new VmError(String.format("unknown opcode %d", code[start]));
+                }
+            } catch (VmError error) {
+                var line = frame.closure.function.chunk.line(start);
+                throw new RuntimeError(line, Objects.requireNonNull(error.getMessage()));
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int offset) {
+        return (Byte.toUnsignedInt(code[offset]) << 8) | Byte.toUnsignedInt(code[offset + 1]);
+    }
+
+    private void callValue(@Nullable Object callee, int argCount) {
+        if (callee instanceof VmClosure closure) {
+            call(closure, argCount);
+        } else if (callee instanceof VmBoundMethod bound) {
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+        } else if (callee instanceof VmClass klass) {
+            stack[stackTop - argCount - 1] = new VmInstance(klass);
+            var initializer = klass.methods.get("init");
+            if (initializer != null) {
+                call(initializer, argCount);
+            } else if (argCount != 0) {
+                throw new VmError(String.format(
+                        "wrong number of arguments in a function call, expected %d, got %d", 0, argCount));
+            }
+        } else if (callee instanceof Builtin.Native nativeFunction) {
+            checkArity(nativeFunction.arity(), argCount);
+            var arguments = Arrays.asList(Arrays.copyOfRange(stack, stackTop - argCount, stackTop));
+            var result = nativeFunction.invoke(arguments);
+            Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+            stackTop -= argCount + 1;
+            stack[stackTop++] = result;
+        } else {
+            throw new VmError("can only call functions and classes");
+        }
+    }
+
+    private void call(VmClosure closure, int argCount) {
+        checkArity(closure.function.arity, argCount);
+        if (frameCount == FRAMES_MAX) {
+            throw new VmError("stack overflow");
+        }
+        frames[frameCount++] = new CallFrame(closure, stackTop - argCount - 1);
+    }
+
+    private static void checkArity(int arity, int argCount) {
+        if (argCount != arity) {
+            throw new VmError(String.format(
+                    "wrong number of arguments in a function call, expected %d, got %d", arity, argCount));
+        }
+    }
+
+    private void invoke(String name, int argCount) {
+        var instance = asInstance(stack[stackTop - argCount - 1]);
+        var field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name)) {
+            stack[stackTop - argCount - 1] = field;
+            callValue(field, argCount);
+            return;
+        }
+        invokeFromClass(instance.klass, name, argCount, "Undefined property '%s'");
+    }
+
+    private void invokeFromClass(VmClass klass, String name, int argCount, String undefinedMessage) {
+        var method = klass.methods.get(name);
+        if (method == null) {
+            throw new VmError(String.format(undefinedMessage, name));
+        }
+        call(method, argCount);
+    }
+
+    private static VmBoundMethod bindMethod(VmInstance receiver, VmClass klass, String name, String undefinedMessage) {
+        var method = klass.methods.get(name);
+        if (method == null) {
+            throw new VmError(String.format(undefinedMessage, name));
+        }
+        return new VmBoundMethod(receiver, method);
+    }
+
+    private static VmInstance asInstance(@Nullable Object value) {
+        if (value instanceof VmInstance instance) {
+            return instance;
+        }
+        throw new VmError("only instances have properties");
+    }
+
+    private VmClosure.Upvalue captureUpvalue(int slot) {
+        VmClosure.Upvalue previous = null;
+        var upvalue = openUpvalues;
+        while (upvalue != null && upvalue.stackSlot() > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.stackSlot() == slot) {
+            return upvalue;
+        }
+        var created = new VmClosure.Upvalue(stack, slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int lastSlot) {
+        while (openUpvalues != null && openUpvalues.stackSlot() >= lastSlot) {
+            var upvalue = openUpvalues;
+            openUpvalues = upvalue.next;
+            upvalue.close();
+        }
+    }
+
+    private static void checkNumberOperands(@Nullable Object left, @Nullable Object right) {
+        if (!(left instanceof Double)) {
+            throw new VmError("left operand must be a number");
+        }
+        if (!(right instanceof Double)) {
+            throw new VmError("right operand must be a number");
+        }
+    }
+}
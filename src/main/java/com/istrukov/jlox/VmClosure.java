@@ -0,0 +1,53 @@
+package com.istrukov.jlox;
+
+import javax.annotation.Nullable;
+
+class VmClosure {
+    final VmFunction function;
+    final Upvalue[] upvalues;
+
+    VmClosure(VmFunction function) {
+        this.function = function;
+        this.upvalues = new Upvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+
+    /**
+     * A variable captured by a closure. While the variable is still live on the VM stack the upvalue points into the
+     * stack array; once the variable goes out of scope it is closed over and moves into a private one-element array.
+     */
+    static class Upvalue {
+        private Object[] holder;
+        private int index;
+        @Nullable
+        Upvalue next;
+
+        Upvalue(Object[] stack, int index, @Nullable Upvalue next) {
+            this.holder = stack;
+            this.index = index;
+            this.next = next;
+        }
+
+        int stackSlot() {
+            return index;
+        }
+
+        @Nullable
+        Object get() {
+            return holder[index];
+        }
+
+        void set(@Nullable Object value) {
+            holder[index] = value;
+        }
+
+        void close() {
+            holder = new Object[]{holder[index]};
+            index = 0;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.istrukov.jlox;
+
+/**
+ * A function compiled to bytecode. The top-level script is compiled into a function with an empty name.
+ */
+class VmFunction {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+
+    VmFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if (name.isEmpty()) {
+            return "<script>";
+        }
+        return String.format("<fn %s>", name);
+    }
+}
@@ -0,0 +1,36 @@
+package com.istrukov.jlox;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class BinaryNodeTest {
+    private static Expr.Binary plus(Expr left, Expr right) {
+        return new Expr.Binary(left, new Token(TokenType.PLUS, "+", Optional.empty(), 1), right);
+    }
+
+    @Test
+    public void testSpecializesOnFirstExecution() {
+        var interpreter = new Interpreter();
+        var numbers = plus(new Expr.Literal(new Token.Literal(1.0)), new Expr.Literal(new Token.Literal(2.0)));
+        assertSame(BinaryNode.UNINITIALIZED, numbers.node);
+        assertEquals(3.0, interpreter.eval(numbers));
+        assertSame(BinaryNode.NUMBER_ADD, numbers.node);
+
+        var strings = plus(new Expr.Literal(new Token.Literal("a")), new Expr.Literal(new Token.Literal("b")));
+        assertEquals("ab", interpreter.eval(strings));
+        assertSame(BinaryNode.STRING_CONCAT, strings.node);
+    }
+
+    @Test
+    public void testDeoptimizesWhenTypesChange() {
+        var interpreter = new Interpreter();
+        var binary = plus(new Expr.Literal(new Token.Literal(1.0)), new Expr.Literal(new Token.Literal(2.0)));
+        interpreter.eval(binary);
+        assertEquals("ab", BinaryNode.NUMBER_ADD.execute(binary, "a", "b"));
+        assertSame(BinaryNode.GENERIC, binary.node);
+    }
+}
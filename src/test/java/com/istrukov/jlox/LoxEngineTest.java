@@ -0,0 +1,526 @@
+package com.istrukov.jlox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class LoxEngineTest {
+    private final LoxEngine engine = new LoxEngine();
+
+    @Test
+    public void testRunsCompiledScriptManyTimes() {
+        var script = engine.compile("var n = 0; fun inc() { n = n + 1; } inc(); inc();");
+        assertFalse(script.hasErrors());
+        for (int i = 0; i < 3; i++) {
+            var globals = engine.newGlobals();
+            assertTrue(script.run(globals).succeeded());
+            assertEquals(2.0, globals.get("n"));
+        }
+    }
+
+    @Test
+    public void testSharesSuppliedGlobalsBetweenScripts() {
+        var globals = engine.newGlobals();
+        globals.define("base", 40.0);
+        assertTrue(engine.compile("var answer = base + 2;").run(globals).succeeded());
+        assertTrue(engine.compile("answer = answer * 2;").run(globals).succeeded());
+        assertEquals(84.0, globals.get("answer"));
+    }
+
+    @Test
+    public void testReturnsCompileErrors() {
+        var script = engine.compile("var x = ;");
+        assertTrue(script.hasErrors());
+        var error = script.errors().get(0);
+        assertEquals(LoxError.Kind.COMPILE, error.kind());
+        assertEquals(1, error.line());
+        assertFalse(script.run().succeeded());
+    }
+
+    @Test
+    public void testReturnsRuntimeErrors() {
+        var result = engine.compile("var x = 1;\nprint x + nil;").run();
+        assertFalse(result.succeeded());
+        var error = result.errors().get(0);
+        assertEquals(LoxError.Kind.RUNTIME, error.kind());
+        assertEquals(2, error.line());
+    }
+
+    @Test
+    public void testOptimizerKeepsErrorsOfFoldedAndDeadCode() {
+        var folded = engine.compile("var x = 1 + 2 * 3;\nprint 1 + nil;");
+        var result = folded.run(engine.newGlobals());
+        assertFalse(result.succeeded());
+        assertEquals(2, result.errors().get(0).line());
+
+        var dead = engine.compile("if (false) { return 1; }");
+        assertTrue(dead.hasErrors());
+        assertEquals(LoxError.Kind.COMPILE, dead.errors().get(0).kind());
+    }
+
+    @Test
+    public void testCompiledFunctionsDeoptimizeAndReportErrors() {
+        var script = engine.compile("fun add(a, b) { return a + b; }\n"
+                + "var sum = 0;\n"
+                + "for (var i = 0; i < 3000; i = i + 1) sum = add(sum, i);\n"
+                + "var text = add(\"a\", \"b\");\n"
+                + "add(1, nil);");
+        var globals = engine.newGlobals();
+        var interpreter = new Interpreter(globals);
+        interpreter.jit = true;
+        var result = script.run(interpreter);
+        assertEquals(4498500.0, globals.get("sum"));
+        assertEquals("ab", globals.get("text"));
+        assertFalse(result.succeeded());
+        assertEquals(1, result.errors().get(0).line());
+    }
+
+    @Test
+    public void testCompiledCallSitesRelinkForNewCallees() {
+        var script = engine.compile("fun inc(x) { return x + 1; }\n"
+                + "fun twice(x) { return x * 2; }\n"
+                + "class Box { init(v) { this.v = v; } }\n"
+                + "fun apply(f, x) { return f(x); }\n"
+                + "var sum = 0;\n"
+                + "for (var i = 0; i < 3000; i = i + 1) sum = sum + apply(inc, i) + apply(twice, i);\n"
+                + "var box = apply(Box, 7);\n"
+                + "apply(clock, 1);");
+        var globals = engine.newGlobals();
+        var interpreter = new Interpreter(globals);
+        interpreter.jit = true;
+        var result = script.run(interpreter);
+        assertEquals(13498500.0, globals.get("sum"));
+        assertTrue(globals.get("box") instanceof LoxInstance);
+        assertFalse(result.succeeded());
+        assertEquals(4, result.errors().get(0).line());
+    }
+
+    @Test
+    public void testInfersTypesOfFrameLocalsAlongControlFlow() {
+        var script = engine.compile("""
+                fun f(n) {
+                  var i = 0;
+                  var s = "";
+                  while (i < 10) { s = s + "a"; i = i + 1; }
+                  if (n) s = nil;
+                  return s;
+                }
+                """);
+        var body = ((Stmt.Function) script.program.get(0)).body;
+        var loop = (Stmt.While) body.get(2);
+        assertEquals(Expr.Type.BOOLEAN, loop.condition.type);
+        assertEquals(BinaryNode.NUMBER_LESS, ((Expr.Binary) loop.condition).node);
+        var append = (Stmt.Expression) ((Stmt.Block) loop.body).statements.get(0);
+        assertEquals(Expr.Type.STRING, append.expression.type);
+        var returned = ((Stmt.Return) body.get(4)).value.orElseThrow();
+        assertEquals(Expr.Type.UNKNOWN, returned.type);
+    }
+
+    @Test
+    public void testRunsConditionsTypedAsBooleans() {
+        var script = engine.compile("""
+                fun count(limit) {
+                  var done = false;
+                  var n = 0;
+                  while (!done) {
+                    n = n + 1;
+                    done = n == limit or n > 100;
+                  }
+                  if (done and n != 0) return n;
+                  return nil;
+                }
+                var counted = count(7);
+                """);
+        var body = ((Stmt.Function) script.program.get(0)).body;
+        var loop = (Stmt.While) body.get(2);
+        assertEquals(Expr.Type.BOOLEAN, loop.condition.type);
+        assertEquals(Expr.Type.BOOLEAN, ((Stmt.If) body.get(3)).condition.type);
+        var globals = engine.newGlobals();
+        assertTrue(script.run(globals).succeeded());
+        assertEquals(7.0, globals.get("counted"));
+    }
+
+    @Test
+    public void testConcatenatesLongStringsInLinearTime() {
+        var script = engine.compile("""
+                var forward = "";
+                var backward = "";
+                for (var i = 0; i < 200000; i = i + 1) {
+                  forward = forward + "ab";
+                  backward = "ab" + backward;
+                }
+                var same = forward == backward;
+                var longer = forward == backward + "ab";
+                """);
+        var globals = engine.newGlobals();
+        assertTrue(script.run(globals).succeeded());
+        assertEquals(true, globals.get("same"));
+        assertEquals(false, globals.get("longer"));
+        assertEquals("ab".repeat(200000), globals.get("forward"));
+    }
+
+    @Test
+    public void testBuffersPrintedOutputUntilFlushed() {
+        var output = new StringWriter();
+        var globals = new Globals(output);
+        globals.define("peek", new Builtin.Native("peek", 0) {
+            @Override
+            Object invoke(List<Object> arguments) {
+                return output.toString();
+            }
+        });
+        var script = engine.compile("""
+                print "a";
+                var before = peek();
+                flush();
+                var after = peek();
+                print "b";
+                print nil + 1;
+                """);
+        assertFalse(script.run(globals).succeeded());
+        assertEquals("", globals.get("before"));
+        assertEquals("a" + System.lineSeparator(), globals.get("after"));
+        assertEquals("a" + System.lineSeparator() + "b" + System.lineSeparator(), output.toString());
+    }
+
+    @Test
+    public void testPropertyCachesStayMonomorphicAcrossRuns() {
+        var script = engine.compile("""
+                class Point { init(v) { this.v = v; } twice() { return this.v * 2; } }
+                var p = Point(base);
+                var v = p.v;
+                var twice = p.twice();
+                """);
+        for (int run = 1; run <= 7; run++) {
+            var globals = engine.newGlobals();
+            globals.define("base", (double) run);
+            assertTrue(script.run(globals).succeeded());
+            assertEquals((double) run, globals.get("v"));
+            assertEquals(2.0 * run, globals.get("twice"));
+        }
+        var field = (Expr.Get) ((Stmt.VariableDeclaration) script.program.get(2)).initializer.orElseThrow();
+        var method = (Expr.Get) ((Expr.Call) ((Stmt.VariableDeclaration) script.program.get(3)).initializer.orElseThrow()).callee;
+        assertFalse(field.cache.isMegamorphic());
+        assertEquals(1, field.cache.size());
+        assertFalse(method.cache.isMegamorphic());
+        assertEquals(1, method.cache.size());
+    }
+
+    @Test
+    public void testMethodCachesCheckTheClassOfSharedShapes() {
+        var globals = engine.newGlobals();
+        var result = engine.compile("""
+                fun make(k) { class C { get() { return k; } } return C(); }
+                var sum = 0;
+                for (var i = 1; i <= 6; i = i + 1) sum = sum + make(i).get();
+                """).run(globals);
+        assertTrue(result.succeeded());
+        assertEquals(21.0, globals.get("sum"));
+    }
+
+    @Test
+    public void testCompiledCallSitesStayLinkedAcrossRuns() {
+        var script = engine.compile("""
+                fun add(a, b) { return a + b; }
+                fun sum(n) { var s = 0; for (var i = 0; i < n; i = i + 1) s = add(s, i); return s; }
+                var total = 0;
+                for (var i = 0; i < 1100; i = i + 1) total = total + sum(3);
+                """);
+        for (int run = 0; run < 12; run++) {
+            var globals = engine.newGlobals();
+            var interpreter = new Interpreter(globals);
+            interpreter.jit = true;
+            assertTrue(script.run(interpreter).succeeded());
+            assertEquals(3300.0, globals.get("total"));
+        }
+        var sum = (Stmt.Function) script.program.get(1);
+        var loop = (Stmt.While) ((Stmt.Block) sum.body.get(1)).statements.get(1);
+        var assignment = (Expr.Assignment) ((Stmt.Expression) ((Stmt.Block) loop.body).statements.get(0)).expression;
+        var site = ((Expr.Call) assignment.expression).site;
+        assertTrue(site != null && !site.isGeneric());
+    }
+
+    @Test
+    public void testStreamsDeclarationsUpToFirstCompileError() {
+        var globals = engine.newGlobals();
+        var result = engine.stream("""
+                var a = 1;
+                fun twice(x) { return x * 2; }
+                a = twice(a + 1);
+                var b = ;
+                a = 0;
+                var c = ;
+                """, globals);
+        assertFalse(result.succeeded());
+        assertEquals(2, result.errors().size());
+        assertEquals(4, result.errors().get(0).line());
+        assertEquals(4.0, globals.get("a"));
+    }
+
+    @Test
+    public void testKeepsCapturedLocalsAliveAfterTheirFrame() {
+        var globals = engine.newGlobals();
+        var result = engine.compile("""
+                fun makeAdders() {
+                  var first;
+                  var second;
+                  for (var i = 1; i < 3; i = i + 1) {
+                    var step = i * 10;
+                    var unused = step + 1;
+                    fun add(x) { return x + step; }
+                    if (i == 1) first = add; else second = add;
+                  }
+                  return first(1) + second(2);
+                }
+                var sum = makeAdders();
+                """).run(globals);
+        assertTrue(result.succeeded());
+        assertEquals(33.0, globals.get("sum"));
+    }
+
+    @Test
+    public void testPassesNilAndLongArgumentLists() {
+        var globals = engine.newGlobals();
+        var result = engine.compile("""
+                fun orZero(x) { if (x == nil) return 0; return x; }
+                fun sum(a, b, c, d, e) { return orZero(a) + b + c + d + e; }
+                var total = sum(nil, 2, 3, 4, 5);
+                """).run(globals);
+        assertTrue(result.succeeded());
+        assertEquals(14.0, globals.get("total"));
+    }
+
+    @Test
+    public void testRunsOneScriptOnManyThreads() throws InterruptedException, ExecutionException {
+        var script = engine.compile("""
+                class Point {
+                  init(x, y) { this.x = x; this.y = y; }
+                  add(other) { return Point(this.x + other.x, this.y + other.y); }
+                }
+                fun sum(n) {
+                  var p = Point(0, 0);
+                  for (var i = 0; i < n; i = i + 1) p = p.add(Point(i, 1));
+                  return p;
+                }
+                var p = sum(1000);
+                var result = p.x + p.y;
+                """);
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var results = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 64; i++) {
+                Callable<Object> run = () -> {
+                    var globals = engine.newGlobals();
+                    assertTrue(script.run(globals).succeeded());
+                    return globals.get("result");
+                };
+                results.add(executor.submit(run));
+            }
+            for (var result : results) {
+                assertEquals(500500.0, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSpawnedTasksCommunicateOverChannels() {
+        var globals = engine.newGlobals();
+        var result = engine.compile("""
+                var numbers = channel();
+                fun producer() {
+                  for (var i = 1; i <= 100; i = i + 1) send(numbers, i);
+                  send(numbers, 0);
+                }
+                fun consumer() {
+                  var sum = 0;
+                  var n = receive(numbers);
+                  while (n != 0) { sum = sum + n; n = receive(numbers); }
+                  return sum;
+                }
+                var consuming = spawn(consumer);
+                spawn(producer);
+                var sum = join(consuming);
+                """).run(globals);
+        assertTrue(result.succeeded(), result.errors().toString());
+        assertEquals(5050.0, globals.get("sum"));
+    }
+
+    @Test
+    public void testJoinReportsFailedTasksInLoxTerms() {
+        var result = engine.compile("""
+                fun down(n) { return down(n + 1); }
+                fun recurse() { return down(0); }
+                var task = spawn(recurse);
+                join(task);
+                """).run(engine.newGlobals());
+        assertFalse(result.succeeded());
+        assertEquals("[line 4] task failed: stack overflow", result.errors().get(0).toString());
+    }
+
+    @Test
+    public void testLoadsResolvedProgramFromCache(@TempDir Path directory) throws IOException {
+        var source = """
+                class Counter {
+                  init(start) { this.count = start; }
+                  inc() { this.count = this.count + 1; return this; }
+                }
+                fun make(n) {
+                  var c = Counter(n);
+                  fun next() { return c.inc().count; }
+                  return next;
+                }
+                var next = make(40);
+                next();
+                var answer = next();
+                if (!(true and false)) answer = answer + -(-0);
+                """;
+        assertTrue(new LoxEngine(new ScriptCache(directory)).compile(source).run().succeeded());
+        try (var entries = Files.list(directory)) {
+            assertEquals(1, entries.count());
+        }
+        var cached = new LoxEngine(new ScriptCache(directory)).compile(source);
+        assertEquals(new AstPrinter().print(engine.compile(source).program.get(0)),
+                new AstPrinter().print(cached.program.get(0)));
+        var globals = engine.newGlobals();
+        assertTrue(cached.run(globals).succeeded());
+        assertEquals(42.0, globals.get("answer"));
+    }
+
+    @Test
+    public void testSymbolsAreIdenticalAcrossScriptsAndSources() {
+        var name = Symbol.of(new String("point"));
+        assertSame(name, Symbol.of("point"));
+        var token = new Scanner(new Utf8Source(ByteBuffer.wrap("var point;".getBytes(StandardCharsets.UTF_8))),
+                new ErrorReporter()).scanTokens().get(1);
+        assertSame(name, token.symbol());
+
+        var globals = engine.newGlobals();
+        assertTrue(engine.compile("""
+                class Point {
+                  init(x) { this.x = x; }
+                  twice() { return this.x * 2; }
+                }
+                var point = Point(21);
+                """).run(globals).succeeded());
+        var other = new Utf8Source(ByteBuffer.wrap("""
+                point.y = point.x + 1;
+                var answer = point.twice() + point.y - point.x - 1;
+                """.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(engine.compile(other).run(globals).succeeded());
+        assertEquals(42.0, globals.get(new String("answer")));
+        var point = (LoxInstance) Objects.requireNonNull(globals.get("point"));
+        assertNotNull(point.klass.findMethod(Symbol.of(new String("twice"))));
+        assertEquals(0, point.shape.slotOf(Symbol.of(new String("x"))));
+        assertEquals(1, point.shape.slotOf(Symbol.of(new String("y"))));
+    }
+
+    @Test
+    public void testBoundGlobalReferencesSeeRedefinitions() {
+        var script = engine.compile("""
+                var greeting = "hello";
+                fun greet() { return greeting; }
+                for (var i = 0; i < 3000; i = i + 1) greet();
+                var before = greet();
+                var greeting = "again";
+                var after = greet();
+                """);
+        for (var jit : List.of(false, true)) {
+            var globals = engine.newGlobals();
+            var interpreter = new Interpreter(globals);
+            interpreter.jit = jit;
+            assertTrue(script.run(interpreter).succeeded());
+            assertEquals("hello", globals.get("before"));
+            assertEquals("again", globals.get("after"));
+
+            globals.define("greeting", "defined by the host");
+            assertTrue(engine.compile("var seen = greet();").run(interpreter).succeeded());
+            assertEquals("defined by the host", globals.get("seen"));
+            assertTrue(engine.compile("""
+                    fun greet() { return "replaced"; }
+                    var replaced = greet();
+                    """).run(interpreter).succeeded());
+            assertEquals("replaced", globals.get("replaced"));
+        }
+    }
+
+    @Test
+    public void testCompilesScriptsFromPipes(@TempDir Path directory) throws Exception {
+        var fifo = directory.resolve("script.lox");
+        var mkfifo = new ProcessBuilder("mkfifo", fifo.toString()).start();
+        assumeTrue(mkfifo.waitFor() == 0);
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var writer = executor.submit(() -> Files.writeString(fifo, "var answer = 6 * 7;"));
+            var script = engine.compile(fifo);
+            writer.get();
+            var globals = engine.newGlobals();
+            assertTrue(script.run(globals).succeeded());
+            assertEquals(42.0, globals.get("answer"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testClearsFramesOfReturnedCalls() {
+        var interpreter = new Interpreter(engine.newGlobals());
+        var result = engine.compile("""
+                fun deep(n, text) {
+                  var longer = text + text;
+                  if (n == 0) return 0;
+                  return deep(n - 1, text) + 1;
+                }
+                var depth = deep(300, "abc");
+                """).run(interpreter);
+        assertTrue(result.succeeded());
+        assertTrue(interpreter.stack.length > 256);
+        assertTrue(Arrays.stream(interpreter.stack).allMatch(Objects::isNull));
+    }
+
+    @Test
+    public void testSubclassesRunInheritedInitializers() {
+        var globals = engine.newGlobals();
+        var result = engine.compile("""
+                class A { init(n) { this.n = n; } }
+                class B < A {}
+                class C < B { twice() { return this.n * 2; } }
+                var b = B(1);
+                var c = C(21);
+                var first = b.n;
+                var same = b.init(2) == b;
+                var second = b.n;
+                var answer = c.twice();
+                C();
+                """).run(globals);
+        assertEquals(1.0, globals.get("first"));
+        assertEquals(true, globals.get("same"));
+        assertEquals(2.0, globals.get("second"));
+        assertEquals(42.0, globals.get("answer"));
+        assertFalse(result.succeeded());
+        assertEquals("[line 10] wrong number of arguments in a function call, expected 1, got 0",
+                result.errors().get(0).toString());
+    }
+}
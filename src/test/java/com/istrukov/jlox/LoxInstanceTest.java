@@ -0,0 +1,48 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LoxInstanceTest {
+    private static Token name(String name) {
+        return new Token(TokenType.IDENTIFIER, name, Optional.empty(), 1);
+    }
+
+    @Test
+    public void testKeepsWritesRacingWithAddedFields() throws InterruptedException, ExecutionException {
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            // Classes of one declaration share their shapes, but each starts with room for few fields.
+            var rootShape = Shape.root();
+            for (int round = 0; round < 50; round++) {
+                var instance = new LoxInstance(new LoxClass("Point", Optional.empty(), ImmutableMap.of(), rootShape));
+                instance.set(name("x"), 0.0);
+                var adder = executor.submit(() -> {
+                    for (int i = 0; i < 4096; i++) {
+                        instance.set(name("field" + i), (double) i);
+                    }
+                });
+                var writer = executor.submit(() -> {
+                    double value = 0;
+                    while (!adder.isDone()) {
+                        value++;
+                        instance.setField(0, value);
+                        assertEquals(value, instance.getField(0));
+                    }
+                    return value;
+                });
+                adder.get();
+                assertEquals(writer.get(), instance.get(name("x")));
+                assertEquals(4095.0, instance.get(name("field4095")));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.istrukov.jlox;
+
+import com.google.common.base.Splitter;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProfilerTest {
+    private static final String PROGRAM = """
+            fun leaf(n) {
+              var s = 0;
+              var i = 0;
+              while (i < n) {
+                s = s + i;
+                i = i + 1;
+              }
+              return s;
+            }
+            fun middle() {
+              return leaf(2000) + leaf(2000);
+            }
+            var total = 0;
+            for (var k = 0; k < 3; k = k + 1) total = total + middle();
+            """;
+    private static final Pattern COLLAPSED_LINE = Pattern.compile("(<script>(?:;\\w+:\\d+)*) (\\d+)");
+
+    private final Profiler profiler = new Profiler(Profiler.Mode.INSTRUMENT);
+
+    private void profile(String source) {
+        var script = new LoxEngine().compile(source);
+        var interpreter = new Interpreter(new Globals(new StringWriter()));
+        interpreter.profiler = profiler;
+        profiler.start();
+        assertTrue(script.run(interpreter).succeeded());
+        profiler.stop();
+    }
+
+    private List<String> report() {
+        var bytes = new ByteArrayOutputStream();
+        profiler.report(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        return bytes.toString(StandardCharsets.UTF_8).lines().toList();
+    }
+
+    private static List<String> columns(String row) {
+        return Splitter.onPattern("\\s+").splitToList(row.trim());
+    }
+
+    @Test
+    public void testReportsCallsPerFunctionAndExecutionsPerLine() {
+        profile(PROGRAM);
+        var report = report();
+        assertEquals(List.of("function", "calls", "inclusive", "ms", "exclusive", "ms"),
+                columns(report.get(0)));
+
+        var calls = new HashMap<String, String>();
+        var executions = new HashMap<String, String>();
+        boolean lines = false;
+        for (var row : report.subList(1, report.size())) {
+            if (row.isEmpty()) {
+                continue;
+            }
+            var columns = columns(row);
+            if (columns.get(0).equals("line")) {
+                lines = true;
+            } else if (lines) {
+                executions.put(columns.get(0), columns.get(1));
+            } else {
+                calls.put(columns.get(0), columns.get(1));
+            }
+        }
+        assertEquals(Map.of("leaf:1", "6", "middle:10", "3"), calls);
+        assertEquals("12000", executions.get("5"));
+        assertEquals("6", executions.get("8"));
+        assertEquals("3", executions.get("11"));
+        assertEquals("1", executions.get("13"));
+    }
+
+    @Test
+    public void testWritesCollapsedStacks() throws IOException {
+        profile(PROGRAM);
+        var out = new StringWriter();
+        profiler.writeCollapsedStacks(out);
+        var text = out.toString();
+        assertTrue(text.endsWith("\n"));
+
+        var paths = new HashMap<String, Long>();
+        for (var line : text.lines().toList()) {
+            var matcher = COLLAPSED_LINE.matcher(line);
+            assertTrue(matcher.matches(), line);
+            paths.put(matcher.group(1), Long.parseLong(matcher.group(2)));
+        }
+        assertTrue(Set.of("<script>", "<script>;middle:10", "<script>;middle:10;leaf:1").containsAll(paths.keySet()),
+                paths.toString());
+        assertTrue(paths.getOrDefault("<script>;middle:10;leaf:1", 0L) > 0, paths.toString());
+    }
+}
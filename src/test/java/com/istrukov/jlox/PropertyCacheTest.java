@@ -0,0 +1,131 @@
+package com.istrukov.jlox;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.Objects;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PropertyCacheTest {
+    private static Token name(String name) {
+        return new Token(TokenType.IDENTIFIER, name, Optional.empty(), 1);
+    }
+
+    private static LoxClass point() {
+        return new LoxClass("Point", Optional.empty(), ImmutableMap.of());
+    }
+
+    private static LoxInstance instance(LoxClass klass, String... fields) {
+        var instance = new LoxInstance(klass);
+        for (int i = 0; i < fields.length; i++) {
+            instance.set(name(fields[i]), (double) i);
+        }
+        return instance;
+    }
+
+    @Test
+    public void testShapesFollowTransitions() {
+        var root = Shape.root();
+        var x = root.withField(Symbol.of("x"));
+        var xy = x.withField(Symbol.of("y"));
+        assertSame(x, root.withField(Symbol.of("x")));
+        assertSame(xy, root.withField(Symbol.of("x")).withField(Symbol.of("y")));
+        assertNotSame(xy, root.withField(Symbol.of("y")).withField(Symbol.of("x")));
+        assertEquals(0, root.size());
+        assertEquals(2, xy.size());
+        assertEquals(0, xy.slotOf(Symbol.of("x")));
+        assertEquals(1, xy.slotOf(Symbol.of("y")));
+        assertEquals(-1, x.slotOf(Symbol.of("y")));
+
+        var klass = point();
+        assertSame(instance(klass, "x", "y").shape, instance(klass, "x", "y").shape);
+        assertNotSame(instance(klass, "x", "y").shape, instance(klass, "y", "x").shape);
+        assertNotSame(instance(klass, "x").shape, instance(point(), "x").shape);
+    }
+
+    @Test
+    public void testCachesOneEntryPerShape() {
+        var klass = point();
+        var cache = new PropertyCache();
+        assertEquals(0.0, cache.get(instance(klass, "x", "y"), name("x")));
+        assertEquals(1, cache.size());
+        var hit = instance(klass, "x", "y");
+        hit.set(name("x"), 5.0);
+        assertEquals(5.0, cache.get(hit, name("x")));
+        assertEquals(1, cache.size());
+
+        assertEquals(1.0, cache.get(instance(klass, "y", "x"), name("x")));
+        assertEquals(2, cache.size());
+        assertThrows(RuntimeError.class, () -> cache.get(instance(klass, "y"), name("x")));
+        assertEquals(2, cache.size());
+        assertFalse(cache.isMegamorphic());
+    }
+
+    @Test
+    public void testCachesFieldTransitionsOnAssignment() {
+        var klass = point();
+        var cache = new PropertyCache();
+        var first = instance(klass, "x");
+        var second = instance(klass, "x");
+        cache.set(first, name("y"), 1.0);
+        cache.set(second, name("y"), 2.0);
+        assertEquals(1, cache.size());
+        assertSame(first.shape, second.shape);
+        assertEquals(2.0, second.get(name("y")));
+
+        cache.set(first, name("y"), 3.0);
+        assertEquals(2, cache.size());
+        assertEquals(3.0, first.get(name("y")));
+    }
+
+    @Test
+    public void testTurnsMegamorphicAfterTooManyShapes() {
+        var klass = point();
+        var cache = new PropertyCache();
+        var instances = new LoxInstance[] {
+                instance(klass, "v"),
+                instance(klass, "a", "v"),
+                instance(klass, "b", "v"),
+                instance(klass, "c", "v"),
+                instance(klass, "d", "v"),
+        };
+        for (int i = 0; i < 4; i++) {
+            cache.get(instances[i], name("v"));
+            assertEquals(i + 1, cache.size());
+            assertFalse(cache.isMegamorphic());
+        }
+        cache.get(instances[4], name("v"));
+        assertTrue(cache.isMegamorphic());
+        assertEquals(0, cache.size());
+        for (var instance : instances) {
+            assertEquals(instance.shape.size() - 1.0, cache.get(instance, name("v")));
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testReplacesMethodEntriesOfAnotherClassWithTheSameShape() {
+        var globals = new LoxEngine().newGlobals();
+        assertTrue(new LoxEngine().compile("""
+                fun make(k) { class C { get() { return k; } } return C; }
+                var one = make(1);
+                var two = make(2);
+                """).run(globals).succeeded());
+        var one = (LoxClass) Objects.requireNonNull(globals.get("one"));
+        var two = (LoxClass) Objects.requireNonNull(globals.get("two"));
+        assertSame(one.rootShape, two.rootShape);
+
+        var cache = new PropertyCache();
+        assertSame(one.findMethod(Symbol.of("get")), cache.method(new LoxInstance(one), name("get")));
+        assertSame(two.findMethod(Symbol.of("get")), cache.method(new LoxInstance(two), name("get")));
+        assertEquals(1, cache.size());
+        assertFalse(cache.isMegamorphic());
+    }
+}
@@ -0,0 +1,71 @@
+package com.istrukov.jlox;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class ScannerTest {
+    private static Utf8Source utf8(String source) {
+        return new Utf8Source(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> errors(ErrorReporter reporter) {
+        return reporter.errors().stream().map(LoxError::toString).toList();
+    }
+
+    @Test
+    public void testDecodesMultiByteStringLiterals() {
+        var reporter = new ErrorReporter();
+        var tokens = new Scanner(utf8("print \"héllo, 世界 🌍\";"), reporter).scanTokens();
+        assertFalse(reporter.hadError());
+        var string = tokens.get(1);
+        assertEquals(TokenType.STRING, string.type());
+        assertEquals("\"héllo, 世界 🌍\"", string.lexeme());
+        assertEquals("héllo, 世界 🌍", string.literal().orElseThrow().asString());
+        assertEquals(TokenType.SEMICOLON, tokens.get(2).type());
+    }
+
+    @Test
+    public void testCountsLinesAcrossNonAsciiText() {
+        var reporter = new ErrorReporter();
+        var tokens = new Scanner(utf8("""
+                // комментарий ✓
+                var a = "строка
+                на двух линиях";
+                /* ß
+                   ü */ var b = 1;
+                """), reporter).scanTokens();
+        assertFalse(reporter.hadError());
+        assertEquals(2, tokens.get(0).line());
+        assertEquals(3, tokens.get(3).line());
+        assertEquals("b", tokens.get(6).lexeme());
+        assertEquals(5, tokens.get(6).line());
+        assertEquals(6, tokens.get(tokens.size() - 1).line());
+    }
+
+    @Test
+    public void testReportsUnterminatedComments() {
+        var reporter = new ErrorReporter();
+        var tokens = new Scanner(utf8("var a;\n/* never ✗\nclosed"), reporter).scanTokens();
+        assertEquals(List.of("[line 3] Error: unterminated comment"), errors(reporter));
+        assertEquals(TokenType.EOF, tokens.get(tokens.size() - 1).type());
+    }
+
+    @Test
+    public void testReportsStrayNonAsciiCharactersOnce() {
+        var reporter = new ErrorReporter();
+        new Scanner(utf8("var é = 1;\nprint 🌍;"), reporter).scanTokens();
+        assertEquals(List.of("[line 1] Error: Unexpected character é", "[line 2] Error: Unexpected character 🌍"),
+                errors(reporter));
+
+        reporter = new ErrorReporter();
+        new Scanner("var é = 1;\nprint 🌍;", reporter).scanTokens();
+        assertEquals(List.of("[line 1] Error: Unexpected character é", "[line 2] Error: Unexpected character 🌍"),
+                errors(reporter));
+    }
+}
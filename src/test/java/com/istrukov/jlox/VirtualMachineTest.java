@@ -0,0 +1,150 @@
+package com.istrukov.jlox;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Runs programs on both the bytecode {@link VirtualMachine} and the tree-walking {@link Interpreter}, which must print
+ * the same output and report the same runtime error.
+ */
+public class VirtualMachineTest {
+    private final LoxEngine engine = new LoxEngine();
+
+    private String interpret(String source) {
+        var output = new StringWriter();
+        var result = engine.compile(source).run(new Globals(output));
+        return output + String.join("\n", result.errors().stream().map(LoxError::toString).toList());
+    }
+
+    private String runOnVm(String source) {
+        var script = engine.compile(source);
+        assertFalse(script.hasErrors());
+        var reporter = new ErrorReporter();
+        var function = Compiler.compile(script.program, reporter);
+        assertFalse(reporter.hadError());
+        var output = new StringWriter();
+        var vm = new VirtualMachine(new Output(output, Output.DEFAULT_BUFFER_SIZE));
+        try {
+            vm.interpret(function);
+        } catch (RuntimeError error) {
+            return output + LoxError.runtime(error).toString();
+        }
+        return output.toString();
+    }
+
+    private void assertSameOnBothEngines(String source, String expected) {
+        assertEquals(expected, interpret(source));
+        assertEquals(expected, runOnVm(source));
+    }
+
+    private static String lines(String... lines) {
+        var text = new StringBuilder();
+        for (var line : lines) {
+            text.append(line).append(System.lineSeparator());
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void testClosuresKeepClosedUpvalues() {
+        assertSameOnBothEngines("""
+                fun counter() {
+                  var n = 0;
+                  fun inc() { n = n + 1; return n; }
+                  return inc;
+                }
+                var a = counter();
+                var b = counter();
+                a(); a();
+                print a();
+                print b();
+                var getters = nil;
+                var setter = nil;
+                {
+                  var shared = "before";
+                  fun get() { return shared; }
+                  fun set(v) { shared = v; }
+                  getters = get;
+                  setter = set;
+                }
+                setter("after");
+                print getters();
+                var first = nil;
+                for (var i = 0; i < 3; i = i + 1) {
+                  var j = i;
+                  fun f() { return j; }
+                  if (i == 0) first = f;
+                }
+                print first();
+                """, lines("3", "1", "after", "0"));
+    }
+
+    @Test
+    public void testJumpsAndLoopsOverLongBodies() {
+        var body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append("x = x + 1; ");
+        }
+        assertSameOnBothEngines("""
+                var x = 0;
+                var i = 0;
+                while (i < 3) {
+                  if (i == 1) { %s } else { x = x - 1; }
+                  i = i + 1;
+                }
+                print x;
+                fun find(limit) {
+                  for (var k = 0; k < 100; k = k + 1) {
+                    if (k * k > limit) return k;
+                  }
+                  return nil;
+                }
+                print find(50);
+                print find(100000);
+                print nil or "default";
+                print false and 1;
+                """.formatted(body), lines("198", "8", "nil", "default", "false"));
+    }
+
+    @Test
+    public void testClassesWithInitializersAndSuper() {
+        assertSameOnBothEngines("""
+                class Shape {
+                  init(name) { this.name = name; }
+                  describe() { return this.name; }
+                  area() { return 0; }
+                }
+                class Square < Shape {
+                  init(side) { super.init("square"); this.side = side; }
+                  area() { return this.side * this.side; }
+                  describe() { return "a " + super.describe(); }
+                }
+                var s = Square(3);
+                print s.describe();
+                print s.area();
+                var method = s.area;
+                s.side = 4;
+                print method();
+                print Square(2).init(5) == nil;
+                print s;
+                """, lines("a square", "9", "16", "false", "Square instance"));
+    }
+
+    @Test
+    public void testReportsRuntimeErrorLines() {
+        assertSameOnBothEngines("""
+                fun divide(a, b) {
+                  return a / b;
+                }
+                print divide(6, 3);
+                print divide(1,
+                  "zero");
+                """, lines("2") + "[line 2] right operand must be a number");
+        assertEquals(interpret("var a = 1;\n\nprint a.field;"), runOnVm("var a = 1;\n\nprint a.field;"));
+        assertEquals(interpret("fun f(a) {}\nf(1,\n2);"), runOnVm("fun f(a) {}\nf(1,\n2);"));
+    }
+}